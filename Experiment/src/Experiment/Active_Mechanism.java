@@ -5,11 +5,14 @@ package Experiment;
  */
 
 import org.apache.commons.math3.linear.*;
+import org.jetbrains.annotations.Contract;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.Random;
 
 
 public class Active_Mechanism {
@@ -22,13 +25,19 @@ public class Active_Mechanism {
 
     Active_Mechanism(Market_Simulator simulator)
     {
-        m_St = new State(simulator.getTask_Num(), simulator.getWorker_Num());
-        for(int i=0; i<simulator.getTask_Num(); ++i)
+        this(simulator, false);
+    }
+
+    // The sparse labeling table suits the markets where few task-worker pairs will be labeled
+    Active_Mechanism(Market_Simulator simulator, boolean Sparse_Or_Not)
+    {
+        if(Sparse_Or_Not)
         {
-            for(int j=0; j<simulator.getWorker_Num(); ++j)
-            {
-                m_St.setEntry(i,j,0);
-            }
+            m_St = new Sparse_State(simulator.getTask_Num(), simulator.getWorker_Num());
+        }
+        else
+        {
+            m_St = State.Create(simulator.getTask_Num(), simulator.getWorker_Num(), simulator.getClass_Num());
         }
         m_simulator = simulator;
     }
@@ -42,10 +51,14 @@ public class Active_Mechanism {
 
     void Run(int T) throws InterruptedException {
         accuracy_record = new ArrayList<>();
-        while (m_RL.getT() < T)
+        while (m_RL.getT() < T && m_RL.hasAvailableAction())
         {
             // Make the action decision
             Action a = m_RL.getDecision(m_St, m_PModel, m_obj);
+            if(a==null)
+            {
+                break;
+            }
 
             // Get the label from the market
             double label = m_simulator.getLabelStream(a.i, a.j);
@@ -57,6 +70,9 @@ public class Active_Mechanism {
             // Update the probability model
             m_PModel.Update(a, m_St);
 
+            // Retire the resolved tasks
+            m_RL.Retirement_Update(m_PModel, Collections.singletonList(a));
+
             // Calculate the accuracy
             if(m_RL.getT()%50==0)
             {
@@ -67,6 +83,41 @@ public class Active_Mechanism {
         m_RL.closeThreadPool();
     }
 
+    // Dispatch batch_size actions per round and ingest their labels with one batch update of the model
+    void Run(int T, int batch_size, boolean One_Per_Worker) throws InterruptedException {
+        accuracy_record = new ArrayList<>();
+        while (m_RL.getT() < T)
+        {
+            int t0 = m_RL.getT();
+            // Make the action decisions
+            List<Action> actions = m_RL.getBatchDecision(m_St, m_PModel, m_obj, Math.min(batch_size, T-t0), One_Per_Worker);
+            if(actions.isEmpty())
+            {
+                break;
+            }
+
+            // Get the labels from the market and update the state variable
+            for(Action a: actions)
+            {
+                m_RL.UpdateSate(a, m_simulator.getLabelStream(a.i, a.j));
+            }
+
+            // Update the probability model
+            m_PModel.BatchUpdate(actions, m_St);
+
+            // Retire the resolved tasks
+            m_RL.Retirement_Update(m_PModel, actions);
+
+            // Calculate the accuracy
+            if(m_RL.getT()/50>t0/50)
+            {
+                double accuracy = Calculate_Accuracy(getTaskLabel(), m_simulator.getTrue_label());
+                accuracy_record.add(accuracy);
+            }
+        }
+        m_RL.closeThreadPool();
+    }
+
 
     public double getObjValue()
     {
@@ -83,8 +134,7 @@ public class Active_Mechanism {
         List<Integer> task_label = new ArrayList<>(m_PModel.getClass_Num());
         for(int i=0; i<m_PModel.getTask_Num(); ++i)
         {
-            RealVector prob_vec = m_PModel.getTaskLabelProb(i, true);
-            task_label.add(prob_vec.getMaxIndex()+1);
+            task_label.add(m_PModel.getTaskMaxLabel(i)+1);
         }
         return task_label;
     }
@@ -108,17 +158,46 @@ public class Active_Mechanism {
     }
 }
 
-/* Give an alias to the labeling table.
+/* Give an alias to the labeling table: entry (i,j) is the label of task i by worker j, 0 for unlabeled.
+ * The table is stored compactly by its implementations: Byte_State and Short_State pack the labels into
+ * one byte (up to 127 classes) or one short per cell, Sparse_State only stores the observed labels.
  */
-class State extends BlockRealMatrix {
-    public State(int row_num, int col_num)
+abstract class State {
+    final int m_row_num, m_col_num;
+
+    State(int row_num, int col_num)
+    {
+        m_row_num = row_num;
+        m_col_num = col_num;
+    }
+
+    // Create the packed table of the smallest cell type able to hold class_num classes
+    static State Create(int row_num, int col_num, int class_num)
+    {
+        if(class_num<=Byte.MAX_VALUE)
+        {
+            return new Byte_State(row_num, col_num);
+        }
+        else
+        {
+            return new Short_State(row_num, col_num);
+        }
+    }
+
+    public abstract double getEntry(int i, int j);
+
+    public abstract void setEntry(int i, int j, double val);
+
+    public abstract State copy();
+
+    public int getRowDimension()
     {
-        super(row_num,col_num);
+        return m_row_num;
     }
 
-    public State(State old_S)
+    public int getColumnDimension()
     {
-        super(old_S.getData());
+        return m_col_num;
     }
 
     public void print()
@@ -147,60 +226,373 @@ class State extends BlockRealMatrix {
         }
     }
 
-    public State copy()
+    public List<Action> getAvailableAction()
     {
-        return new State(this);
+        ArrayList<Action> available_action = new ArrayList<>();
+        for(int i=0; i<this.getRowDimension(); ++i)
+        {
+            for(int j=0; j<this.getColumnDimension(); ++j)
+            {
+                if(this.getEntry(i,j)==0) {
+                    available_action.add(new Action(i, j));
+                }
+            }
+        }
+        return available_action;
     }
 
-    public List<Action> getAvailableAction()
+    // The unlabeled cells as an action set, without building Action objects
+    public Action_Set getAvailableActionSet()
     {
-        ArrayList<Action> available_action = new ArrayList<>();
+        Action_Set available_action = new Action_Set(16);
         for(int i=0; i<this.getRowDimension(); ++i)
         {
             for(int j=0; j<this.getColumnDimension(); ++j)
             {
                 if(this.getEntry(i,j)==0) {
+                    available_action.add(i, j);
+                }
+            }
+        }
+        return available_action;
+    }
+}
+
+/* The byte-packed labeling table keeps one byte array per task, so no array exceeds the number of workers.
+ */
+class Byte_State extends State {
+    private final byte[][] m_label;
+
+    Byte_State(int row_num, int col_num)
+    {
+        super(row_num, col_num);
+        m_label = new byte[row_num][col_num];
+    }
+
+    Byte_State(Byte_State old_S)
+    {
+        super(old_S.m_row_num, old_S.m_col_num);
+        m_label = new byte[m_row_num][];
+        for(int i=0; i<m_row_num; ++i)
+        {
+            m_label[i] = old_S.m_label[i].clone();
+        }
+    }
+
+    public double getEntry(int i, int j)
+    {
+        return m_label[i][j];
+    }
+
+    public void setEntry(int i, int j, double val)
+    {
+        m_label[i][j] = (byte)val;
+    }
+
+    public Byte_State copy()
+    {
+        return new Byte_State(this);
+    }
+}
+
+/* The short-packed labeling table for more than 127 classes.
+ */
+class Short_State extends State {
+    private final short[][] m_label;
+
+    Short_State(int row_num, int col_num)
+    {
+        super(row_num, col_num);
+        m_label = new short[row_num][col_num];
+    }
+
+    Short_State(Short_State old_S)
+    {
+        super(old_S.m_row_num, old_S.m_col_num);
+        m_label = new short[m_row_num][];
+        for(int i=0; i<m_row_num; ++i)
+        {
+            m_label[i] = old_S.m_label[i].clone();
+        }
+    }
+
+    public double getEntry(int i, int j)
+    {
+        return m_label[i][j];
+    }
+
+    public void setEntry(int i, int j, double val)
+    {
+        m_label[i][j] = (short)val;
+    }
+
+    public Short_State copy()
+    {
+        return new Short_State(this);
+    }
+}
+
+/* The sparse labeling table keeps the labeled workers of each task and their labels in short growable
+ * arrays, for markets where few cells are labeled. Clearing a cell swaps the last entry of the task in.
+ */
+class Sparse_State extends State {
+    private final static int[] EMPTY_WORKER = new int[0];
+    private final static short[] EMPTY_LABEL = new short[0];
+    private final int[][] m_worker;
+    private final short[][] m_label;
+    private final int[] m_deg;
+
+    Sparse_State(int row_num, int col_num)
+    {
+        super(row_num, col_num);
+        m_worker = new int[row_num][];
+        m_label = new short[row_num][];
+        m_deg = new int[row_num];
+        Arrays.fill(m_worker, EMPTY_WORKER);
+        Arrays.fill(m_label, EMPTY_LABEL);
+    }
+
+    Sparse_State(Sparse_State old_S)
+    {
+        super(old_S.m_row_num, old_S.m_col_num);
+        m_worker = new int[m_row_num][];
+        m_label = new short[m_row_num][];
+        m_deg = old_S.m_deg.clone();
+        for(int i=0; i<m_row_num; ++i)
+        {
+            m_worker[i] = (m_deg[i]==0) ? EMPTY_WORKER : Arrays.copyOf(old_S.m_worker[i], m_deg[i]);
+            m_label[i] = (m_deg[i]==0) ? EMPTY_LABEL : Arrays.copyOf(old_S.m_label[i], m_deg[i]);
+        }
+    }
+
+    // Position of worker j in the list of task i, -1 if it is not there
+    private int Find(int i, int j)
+    {
+        int[] worker = m_worker[i];
+        for(int n=0; n<m_deg[i]; ++n)
+        {
+            if(worker[n]==j)
+            {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    public double getEntry(int i, int j)
+    {
+        int n = Find(i, j);
+        return (n<0) ? 0 : m_label[i][n];
+    }
+
+    public void setEntry(int i, int j, double val)
+    {
+        int n = Find(i, j);
+        if(val==0)
+        {
+            if(n>=0)
+            {
+                int last = --m_deg[i];
+                m_worker[i][n] = m_worker[i][last];
+                m_label[i][n] = m_label[i][last];
+            }
+        }
+        else if(n>=0)
+        {
+            m_label[i][n] = (short)val;
+        }
+        else
+        {
+            if(m_deg[i]==m_worker[i].length)
+            {
+                int capacity = Math.max(4, 2*m_deg[i]);
+                m_worker[i] = Arrays.copyOf(m_worker[i], capacity);
+                m_label[i] = Arrays.copyOf(m_label[i], capacity);
+            }
+            m_worker[i][m_deg[i]] = j;
+            m_label[i][m_deg[i]] = (short)val;
+            m_deg[i]++;
+        }
+    }
+
+    public Sparse_State copy()
+    {
+        return new Sparse_State(this);
+    }
+
+    // Only the labeled cells are visited
+    public void Sparse_Print()
+    {
+        for(int i=0; i<m_row_num; ++i)
+        {
+            for(int n=0; n<m_deg[i]; ++n)
+            {
+                System.out.println("(Task:"+i + ", Worker:"+m_worker[i][n]+")--->"+(double)m_label[i][n]);
+            }
+        }
+    }
+
+    public List<Action> getAvailableAction()
+    {
+        ArrayList<Action> available_action = new ArrayList<>();
+        boolean[] labeled = new boolean[m_col_num];
+        for(int i=0; i<m_row_num; ++i)
+        {
+            for(int n=0; n<m_deg[i]; ++n)
+            {
+                labeled[m_worker[i][n]] = true;
+            }
+            for(int j=0; j<m_col_num; ++j)
+            {
+                if(!labeled[j])
+                {
                     available_action.add(new Action(i, j));
                 }
             }
+            for(int n=0; n<m_deg[i]; ++n)
+            {
+                labeled[m_worker[i][n]] = false;
+            }
         }
         return available_action;
     }
 }
 
-/* Give an alias to the duplicated labeling table vector.
+/* The overlay labeling table keeps a few hypothetical labels on top of a shared base table, which it never
+ * writes. Every evaluation task owns its overlay, so the base can be read from any thread while the
+ * hypothetical labels stay private; the overlay is only valid while the base is unchanged.
+ * Overlays may be stacked, and each one keeps the Zobrist hash of the cells that differ from the bottom
+ * table, so that the same hypothetical label set gives the same hash whatever order it was written in.
  */
-class DVState {
-    Vector<State> m_state_vec;
+class Overlay_State extends State {
+    private final State m_base;
+    // The bottom (non-overlay) table and the Zobrist hash of the cells that differ from it
+    private final State m_root;
+    private final long m_init_hash;
+    private long m_hash;
+    // The overwritten cells (as Action_Set codes) and their labels, the search paths are short
+    private long[] m_code;
+    private double[] m_val;
+    private int m_size;
 
-    DVState(State s, int d) {
-        m_state_vec = new Vector<>();
-        m_state_vec.add(s);
-        for(int i=1; i<d; ++i)
+    Overlay_State(State base)
+    {
+        super(base.getRowDimension(), base.getColumnDimension());
+        m_base = base;
+        if(base instanceof Overlay_State)
+        {
+            m_root = ((Overlay_State) base).m_root;
+            m_init_hash = ((Overlay_State) base).m_hash;
+        }
+        else
         {
-            m_state_vec.add(s.copy());
+            m_root = base;
+            m_init_hash = 0;
         }
+        m_hash = m_init_hash;
+        m_code = new long[4];
+        m_val = new double[4];
+        m_size = 0;
     }
 
-    void setEntry(int i, int j, double val)
+    private int Find(long code)
     {
-        for(State s: m_state_vec)
+        for(int n=0; n<m_size; ++n)
         {
-            s.setEntry(i,j, val);
+            if(m_code[n]==code)
+            {
+                return n;
+            }
         }
+        return -1;
     }
 
-    void setEntry(int i, int j, int val)
+    public double getEntry(int i, int j)
     {
-        for(State s: m_state_vec)
+        int n = Find(Action_Set.Encode(i, j));
+        return (n<0) ? m_base.getEntry(i, j) : m_val[n];
+    }
+
+    public void setEntry(int i, int j, double val)
+    {
+        long code = Action_Set.Encode(i, j);
+        int n = Find(code);
+        double root_val = m_root.getEntry(i, j);
+        double old_val = (n<0) ? m_base.getEntry(i, j) : m_val[n];
+        if(old_val!=root_val)
+        {
+            m_hash ^= Zobrist(code, old_val);
+        }
+        if(val!=root_val)
         {
-            s.setEntry(i,j, (double)val);
+            m_hash ^= Zobrist(code, val);
         }
+        if(val==m_base.getEntry(i, j))
+        {
+            // Back to the base label, forget the cell
+            if(n>=0)
+            {
+                m_size--;
+                m_code[n] = m_code[m_size];
+                m_val[n] = m_val[m_size];
+            }
+        }
+        else if(n>=0)
+        {
+            m_val[n] = val;
+        }
+        else
+        {
+            if(m_size==m_code.length)
+            {
+                m_code = Arrays.copyOf(m_code, 2*m_size);
+                m_val = Arrays.copyOf(m_val, 2*m_size);
+            }
+            m_code[m_size] = code;
+            m_val[m_size] = val;
+            m_size++;
+        }
+    }
+
+    // Drop all hypothetical labels
+    void Reset()
+    {
+        m_size = 0;
+        m_hash = m_init_hash;
+    }
+
+    // The hash of the hypothetical label set (against the bottom table)
+    long getHash()
+    {
+        return m_hash;
+    }
+
+    // The Zobrist key of label val at a cell, mixed from the cell code and the label instead of a random table
+    @Contract(pure = true)
+    private static long Zobrist(long code, double val)
+    {
+        return Mix(code^Mix((long)val));
     }
 
-    State get(int i)
+    // The splitmix64 finalizer
+    @Contract(pure = true)
+    private static long Mix(long z)
     {
-        return m_state_vec.get(i);
+        z += 0x9E3779B97F4A7C15L;
+        z = (z^(z>>>30))*0xBF58476D1CE4E5B9L;
+        z = (z^(z>>>27))*0x94D049BB133111EBL;
+        return z^(z>>>31);
+    }
+
+    // The copy is a standalone table with the hypothetical labels written in
+    public State copy()
+    {
+        State s = m_base.copy();
+        for(int n=0; n<m_size; ++n)
+        {
+            s.setEntry(Action_Set.Task(m_code[n]), Action_Set.Worker(m_code[n]), m_val[n]);
+        }
+        return s;
     }
 }
 
@@ -214,4 +606,402 @@ class Action {
         i = selected_task_no;
         j = selected_worker_no;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if(!(o instanceof Action))
+        {
+            return false;
+        }
+        Action a = (Action)o;
+        return (i==a.i) && (j==a.j);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return 31*i+j;
+    }
+}
+
+/* Action Set keeps the available actions as primitive codes (task in the high 32 bits, worker in the low
+ * ones) in a dense array, with an open-addressing table from a code to its position. Adding, removing,
+ * membership and uniform sampling are O(1); removing swaps the last action into the freed position.
+ * Iterate with size() and getCode(n) (or get(n)) to avoid boxing.
+ */
+class Action_Set {
+    private final static long EMPTY = -1L;
+    private long[] m_code;
+    private int m_size;
+    // Hash table from the code to its position in m_code (linear probing, EMPTY for free slots)
+    private long[] m_key;
+    private int[] m_pos;
+    private int m_mask;
+
+    Action_Set(int capacity)
+    {
+        m_code = new long[Math.max(capacity, 4)];
+        m_size = 0;
+        int table_size = Integer.highestOneBit(Math.max(capacity, 4)*2-1)*2;
+        m_key = new long[table_size];
+        m_pos = new int[table_size];
+        m_mask = table_size-1;
+        Arrays.fill(m_key, EMPTY);
+    }
+
+    Action_Set(Action_Set set)
+    {
+        m_code = set.m_code.clone();
+        m_size = set.m_size;
+        m_key = set.m_key.clone();
+        m_pos = set.m_pos.clone();
+        m_mask = set.m_mask;
+    }
+
+    @Contract(pure = true)
+    static long Encode(int i, int j)
+    {
+        return ((long)i<<32)|(j&0xffffffffL);
+    }
+
+    @Contract(pure = true)
+    static int Task(long code)
+    {
+        return (int)(code>>>32);
+    }
+
+    @Contract(pure = true)
+    static int Worker(long code)
+    {
+        return (int)code;
+    }
+
+    private int Slot(long code)
+    {
+        long h = code*0x9E3779B97F4A7C15L;
+        return (int)(h>>>32)&m_mask;
+    }
+
+    // Slot of the code in the hash table, or the free slot where it would go
+    private int Find(long code)
+    {
+        int slot = Slot(code);
+        while(m_key[slot]!=EMPTY && m_key[slot]!=code)
+        {
+            slot = (slot+1)&m_mask;
+        }
+        return slot;
+    }
+
+    int size()
+    {
+        return m_size;
+    }
+
+    boolean isEmpty()
+    {
+        return m_size==0;
+    }
+
+    long getCode(int n)
+    {
+        return m_code[n];
+    }
+
+    Action get(int n)
+    {
+        return new Action(Task(m_code[n]), Worker(m_code[n]));
+    }
+
+    boolean contains(int i, int j)
+    {
+        return m_key[Find(Encode(i, j))]!=EMPTY;
+    }
+
+    boolean contains(Action a)
+    {
+        return contains(a.i, a.j);
+    }
+
+    // The position of the action (i, j), -1 if it is not in the set
+    int indexOf(int i, int j)
+    {
+        int slot = Find(Encode(i, j));
+        return (m_key[slot]==EMPTY) ? -1 : m_pos[slot];
+    }
+
+    boolean add(int i, int j)
+    {
+        long code = Encode(i, j);
+        int slot = Find(code);
+        if(m_key[slot]!=EMPTY)
+        {
+            return false;
+        }
+        if(m_size==m_code.length)
+        {
+            m_code = Arrays.copyOf(m_code, 2*m_size);
+        }
+        m_key[slot] = code;
+        m_pos[slot] = m_size;
+        m_code[m_size++] = code;
+        if(2*m_size>m_key.length)
+        {
+            Rehash(2*m_key.length);
+        }
+        return true;
+    }
+
+    boolean add(Action a)
+    {
+        return add(a.i, a.j);
+    }
+
+    boolean remove(int i, int j)
+    {
+        int slot = Find(Encode(i, j));
+        if(m_key[slot]==EMPTY)
+        {
+            return false;
+        }
+        int n = m_pos[slot];
+        DeleteSlot(slot);
+        long last = m_code[--m_size];
+        if(n!=m_size)
+        {
+            m_code[n] = last;
+            m_pos[Find(last)] = n;
+        }
+        return true;
+    }
+
+    boolean remove(Action a)
+    {
+        return remove(a.i, a.j);
+    }
+
+    // Remove the n-th action and return it
+    Action removeAt(int n)
+    {
+        Action a = get(n);
+        remove(a.i, a.j);
+        return a;
+    }
+
+    // Get a uniformly sampled action (the set is unchanged)
+    Action sample(Random random)
+    {
+        return get(random.nextInt(m_size));
+    }
+
+    // Backward-shift deletion keeps the probing chains without tombstones
+    private void DeleteSlot(int slot)
+    {
+        int gap = slot;
+        int next = (gap+1)&m_mask;
+        while(m_key[next]!=EMPTY)
+        {
+            int home = Slot(m_key[next]);
+            // Move the entry back if its home is not in the cyclic range (gap, next]
+            if(((next-home)&m_mask)>=((next-gap)&m_mask))
+            {
+                m_key[gap] = m_key[next];
+                m_pos[gap] = m_pos[next];
+                gap = next;
+            }
+            next = (next+1)&m_mask;
+        }
+        m_key[gap] = EMPTY;
+    }
+
+    private void Rehash(int table_size)
+    {
+        m_key = new long[table_size];
+        m_pos = new int[table_size];
+        m_mask = table_size-1;
+        Arrays.fill(m_key, EMPTY);
+        for(int n=0; n<m_size; ++n)
+        {
+            int slot = Find(m_code[n]);
+            m_key[slot] = m_code[n];
+            m_pos[slot] = n;
+        }
+    }
+}
+
+/* Action View is the available action set of a tree node: an Action_Set (left unchanged) without the actions
+ * on the path to the node. It only keeps the positions of those actions, so the nodes and the parallel
+ * subtrees share the set of the root instead of copying it. The n-th action skips the excluded positions.
+ */
+class Action_View {
+    private final static int[] NONE = new int[0];
+    private final Action_Set m_set;
+    // Positions of the excluded actions in m_set, ascending
+    private final int[] m_excluded;
+
+    Action_View(Action_Set set)
+    {
+        this(set, NONE);
+    }
+
+    private Action_View(Action_Set set, int[] excluded)
+    {
+        m_set = set;
+        m_excluded = excluded;
+    }
+
+    // The view without the action a as well
+    Action_View Without(Action a)
+    {
+        int pos = m_set.indexOf(a.i, a.j);
+        if(pos<0 || Arrays.binarySearch(m_excluded, pos)>=0)
+        {
+            return this;
+        }
+        int[] excluded = Arrays.copyOf(m_excluded, m_excluded.length+1);
+        int n = excluded.length-1;
+        while(n>0 && excluded[n-1]>pos)
+        {
+            excluded[n] = excluded[n-1];
+            n--;
+        }
+        excluded[n] = pos;
+        return new Action_View(m_set, excluded);
+    }
+
+    int size()
+    {
+        return m_set.size()-m_excluded.length;
+    }
+
+    long getCode(int n)
+    {
+        int pos = n;
+        for(int excluded: m_excluded)
+        {
+            if(excluded>pos)
+            {
+                break;
+            }
+            pos++;
+        }
+        return m_set.getCode(pos);
+    }
+
+    Action get(int n)
+    {
+        long code = getCode(n);
+        return new Action(Action_Set.Task(code), Action_Set.Worker(code));
+    }
+
+    // Sample num distinct actions uniformly (Floyd's algorithm), the view is unchanged
+    long[] Sample(int num, Random random)
+    {
+        int size = size();
+        Code_Map chosen = new Code_Map(num);
+        long[] codes = new long[num];
+        int k = 0;
+        for(int n=size-num; n<size; ++n)
+        {
+            int pos = random.nextInt(n+1);
+            if(chosen.get(pos)>=0)
+            {
+                pos = n;
+            }
+            chosen.put(pos, k);
+            codes[k++] = getCode(pos);
+        }
+        return codes;
+    }
+}
+
+
+/* Code Map maps primitive codes (see Action_Set) to non-negative ints with open addressing and linear
+ * probing, so that the per-candidate and per-label lookups do not box. get returns -1 for a missing code.
+ */
+class Code_Map {
+    private long[] m_key;
+    private int[] m_value;
+    private boolean[] m_used;
+    private int m_size;
+    private int m_mask;
+
+    Code_Map(int capacity)
+    {
+        int table_size = Integer.highestOneBit(Math.max(capacity, 4)*2-1)*2;
+        m_key = new long[table_size];
+        m_value = new int[table_size];
+        m_used = new boolean[table_size];
+        m_mask = table_size-1;
+    }
+
+    private int Find(long code)
+    {
+        long h = code*0x9E3779B97F4A7C15L;
+        int slot = (int)(h>>>32)&m_mask;
+        while(m_used[slot] && m_key[slot]!=code)
+        {
+            slot = (slot+1)&m_mask;
+        }
+        return slot;
+    }
+
+    int size()
+    {
+        return m_size;
+    }
+
+    int get(long code)
+    {
+        int slot = Find(code);
+        return m_used[slot] ? m_value[slot] : -1;
+    }
+
+    void put(long code, int value)
+    {
+        int slot = Find(code);
+        if(!m_used[slot])
+        {
+            m_used[slot] = true;
+            m_key[slot] = code;
+            m_size++;
+        }
+        m_value[slot] = value;
+        if(2*m_size>m_key.length)
+        {
+            Rehash(2*m_key.length);
+        }
+    }
+
+    // Remove all the codes (the table keeps its size)
+    void Clear()
+    {
+        if(m_size>0)
+        {
+            Arrays.fill(m_used, false);
+            m_size = 0;
+        }
+    }
+
+    private void Rehash(int table_size)
+    {
+        long[] key = m_key;
+        int[] value = m_value;
+        boolean[] used = m_used;
+        m_key = new long[table_size];
+        m_value = new int[table_size];
+        m_used = new boolean[table_size];
+        m_mask = table_size-1;
+        for(int slot=0; slot<key.length; ++slot)
+        {
+            if(used[slot])
+            {
+                int new_slot = Find(key[slot]);
+                m_used[new_slot] = true;
+                m_key[new_slot] = key[slot];
+                m_value[new_slot] = value[slot];
+            }
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package Experiment;
 
-import org.apache.commons.math3.linear.RealVector;
-
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -16,6 +14,8 @@ class CrowdNode {
     // Node Data
     public Prob_Model crowdModel;
     public double objValue;
+    // The objective of crowdModel itself (objValue is later backed up by the tree search), NaN until needed
+    private double modelValue = Double.NaN;
     public Obj_Function objFun;
     public boolean flagOpt;
 
@@ -24,6 +24,13 @@ class CrowdNode {
     public int observedLabel;
     public double labelProb;
 
+    // The transposition table of the tree (shared by all its nodes), null for none
+    public Transposition_Table transTable;
+
+    // Search Statistics (of the Monte-Carlo tree search)
+    public int visitNum;
+    public double valueSum;
+
     // Number of Searching Space
     private final static int nSpareSampling = 200;
 
@@ -42,6 +49,7 @@ class CrowdNode {
         labelProb = label_probability;
         childNodes = new ArrayList<>();
         flagSparseSampling = (parent != null) && (parent.flagSparseSampling);
+        transTable = (parent != null) ? parent.transTable : null;
     }
 
     // Initialize the Node
@@ -56,65 +64,82 @@ class CrowdNode {
         labelProb = label_probability;
         childNodes = new ArrayList<>();
         flagSparseSampling = Sparse_Or_Not;
+        transTable = (parent != null) ? parent.transTable : null;
     }
 
 
-    // Calculate the action-value table
-    private Map<Action, Double> CalActionValue(DVState s_vec, List<Action> available_action_list, ThreadPoolExecutor executor) {
-        List<PredictValueTask> futureList = new ArrayList<PredictValueTask>();
-        Map<Action, Double> action_value = new HashMap<>();
-        List<Action> actions = new ArrayList<>();
+    // Evaluate the actions and keep the num_of_best best ones. The actions of equal model signatures are
+    // evaluated once (see Action_Groups), by chunks of the representatives (see Range_Task).
+    private Top_K CalActionValue(State state, Action_View available_action_list, ExecutorService executor, int num_of_best) {
+        Top_K top_k = new Top_K(num_of_best);
+        double model_value = getModelValue();
+        long[] candidates;
         if(flagSparseSampling && (nSpareSampling<available_action_list.size())) {
-            List<Action> ss_aal = new ArrayList<>(available_action_list);
-            for (int i = 0; i < nSpareSampling; ++i) {
-                int index_of_action = ThreadLocalRandom.current().nextInt(ss_aal.size());
-                PredictValueTask myTask = new PredictValueTask(s_vec, ss_aal.get(index_of_action), crowdModel, objFun, flagOpt);
-                futureList.add(myTask);
-                actions.add(ss_aal.remove(index_of_action));
-            }
+            // A uniform sample without replacement, the shared set is left unchanged
+            candidates = available_action_list.Sample(nSpareSampling, ThreadLocalRandom.current());
         }
         else
         {
-            for(Action a: available_action_list){
-                PredictValueTask myTask = new PredictValueTask(s_vec, a, crowdModel, objFun, flagOpt);
-                futureList.add(myTask);
-                actions.add(a);
+            candidates = new long[available_action_list.size()];
+            for(int n=0; n<available_action_list.size(); ++n){
+                candidates[n] = available_action_list.getCode(n);
             }
         }
-        try {
-            List<Future<Double>> futures = executor.invokeAll(futureList);
-            Iterator<Future<Double>> it1 = futures.iterator();
-            Iterator<Action> it2 = actions.iterator();
-            while (it1.hasNext()) {
-                Future<Double> future = it1.next();
-                if(!future.isDone())
-                {
-                    System.out.println("Error");
-                }
-                action_value.put(it2.next(), future.get());
+        Action_Groups groups = new Action_Groups(crowdModel, candidates);
+        double[] values = new double[groups.size()];
+        Range_Task.Evaluate(executor, groups.getRepresentatives(), values, state, crowdModel, model_value, objFun, flagOpt);
+        for(int g=0; g<groups.size(); ++g)
+        {
+            for(int n=groups.First(g); n>=0; n=groups.Next(n))
+            {
+                top_k.Offer(candidates[n], values[g]);
             }
-        } catch (InterruptedException | NullPointerException | ExecutionException e) {
-            System.out.println("Multi-Threading Error: " + e.getMessage());
         }
-        return action_value;
+        return top_k;
     }
 
-    private void Cal_Obj_Value(State state)
+    private void Cal_Obj_Value(Overlay_State state)
     {
         state.setEntry(parentAction.i, parentAction.j, observedLabel);
-        crowdModel = (parentNode.crowdModel).Copy();
-        crowdModel.QuickUpdate(parentAction, state);
-        objValue = objFun.getObjValue(crowdModel);
+        // The same label set may have been reached by another order of the actions
+        Transposition_Entry entry = (transTable==null) ? null : transTable.get(state.getHash());
+        if(entry!=null)
+        {
+            crowdModel = entry.model;
+            modelValue = entry.value;
+        }
+        else
+        {
+            crowdModel = (parentNode.crowdModel).Overlay();
+            crowdModel.QuickUpdate(parentAction, state);
+            modelValue = objFun.getObjValue(crowdModel, parentNode.crowdModel, parentNode.getModelValue());
+            if(transTable!=null)
+            {
+                transTable.put(state.getHash(), new Transposition_Entry(crowdModel, modelValue));
+            }
+        }
+        objValue = modelValue;
         state.setEntry(parentAction.i, parentAction.j, 0);
     }
 
-    private List<CrowdNode> Gene_Node(State state, Action action)
+    // Get the objective of the model of this node, the children evaluate theirs incrementally from it
+    double getModelValue()
+    {
+        if(Double.isNaN(modelValue))
+        {
+            modelValue = objFun.getObjValue(crowdModel);
+        }
+        return modelValue;
+    }
+
+    List<CrowdNode> Gene_Node(Overlay_State state, Action action)
     {
         List<CrowdNode> new_nodes = new ArrayList<>(crowdModel.getClass_Num());
-        RealVector label_prob = crowdModel.getLabelProb(action);
+        double[] label_prob = Prob_Buffer.Label(crowdModel.getClass_Num());
+        crowdModel.getLabelProb(action, label_prob);
         for(int label = 1; label<=crowdModel.getClass_Num(); ++label)
         {
-            CrowdNode node = new CrowdNode(this, action, label, objFun, flagOpt, label_prob.getEntry(label-1));
+            CrowdNode node = new CrowdNode(this, action, label, objFun, flagOpt, label_prob[label-1]);
             node.Cal_Obj_Value(state);
             new_nodes.add(node);
         }
@@ -122,31 +147,22 @@ class CrowdNode {
     }
 
     // Generate the required number of children nodes
-    void Gene_Children(int num_of_children, DVState s_vec, List<Action> available_action_list, ThreadPoolExecutor executor) {
-
+    void Gene_Children(int num_of_children, State state, Action_View available_action_list, ExecutorService executor) {
+        // The hypothetical labels of the children go into a private overlay, the shared table is only read
+        Overlay_State hypo_state = new Overlay_State(state);
         if(available_action_list.size()>num_of_children)
         {
-            Map<Action, Double> action_value = CalActionValue(s_vec, available_action_list, executor);
-            for(int i=0; i<num_of_children; ++i)
+            long[] best_actions = CalActionValue(state, available_action_list, executor, num_of_children).Sorted();
+            // Only the kept actions are built, each child owns its parent action
+            for(long code: best_actions)
             {
-                Action best_action = null;
-                double value = -1;
-                for(Action a:action_value.keySet())
-                {
-                    if(action_value.get(a)>value+1e-12)
-                    {
-                        best_action = a;
-                        value = action_value.get(a);
-                    }
-                }
-                childNodes.add(Gene_Node(s_vec.get(0), best_action));
-                action_value.put(best_action, -1.0);
+                childNodes.add(Gene_Node(hypo_state, new Action(Action_Set.Task(code), Action_Set.Worker(code))));
             }
         }
         else{
-            for(Action action:available_action_list)
+            for(int n=0; n<available_action_list.size(); ++n)
             {
-                childNodes.add(Gene_Node(s_vec.get(0), action));
+                childNodes.add(Gene_Node(hypo_state, available_action_list.get(n)));
             }
         }
     }
@@ -158,39 +174,66 @@ class CrowdNode {
 }
 
 
-class PredictValueTask implements Callable<Double> {
-    private DVState m_s_vec;
+/* Predict Value Task calculates the expected (or optimistic) objective after an action. It is also the
+ * workspace of a chunk of evaluations: Value reuses its state overlay and its scratch model overlay (reverted
+ * between labels) across the actions of the chunk.
+ */
+class PredictValueTask implements Callable<PredictValueTask> {
+    // The shared labeling table (read only), the hypothetical labels go into the private overlay m_hypo
+    private State m_state;
+    private Overlay_State m_hypo;
     private Action m_a;
     private Obj_Function m_obj_fun;
     private Prob_Model m_model;
+    // The scratch overlay of m_model, null until needed
+    private Prob_Model m_scratch;
+    private double m_model_value;
     private boolean m_flag_opt;
+    // The value of the action, set by call()
+    private double m_value;
 
-    PredictValueTask(DVState s_vec, Action a, Prob_Model model, Obj_Function obj_fun, boolean flag_opt) {
-        m_s_vec = s_vec;
+    PredictValueTask(State state, Action a, Prob_Model model, double model_value, Obj_Function obj_fun, boolean flag_opt) {
+        m_state = state;
         m_a = a;
         m_model = model;
+        m_model_value = model_value;
         m_obj_fun = obj_fun;
         m_flag_opt = flag_opt;
     }
 
-    private double Cal_Label_Value(State s, int ob_label)
+    // An overlay of the model without updates: the scratch one reverted, or a new one
+    private Prob_Model Scratch()
     {
+        if(m_scratch==null || !m_scratch.Revert())
+        {
+            m_scratch = m_model.Overlay();
+        }
+        return m_scratch;
+    }
+
+    private double Cal_Label_Value(Overlay_State s, int ob_label)
+    {
+        // Closed form: only the term of task m_a.i changes
+        double[] prob = Prob_Buffer.Post(m_model.getClass_Num());
+        if(m_model.getTaskLabelProbAfter(m_a, ob_label, prob))
+        {
+            return m_model_value-m_obj_fun.getTaskValue(m_model, m_a.i)+m_obj_fun.getProbValue(prob);
+        }
         s.setEntry(m_a.i, m_a.j, ob_label);
-        Prob_Model newModel = m_model.Copy();
+        Prob_Model newModel = Scratch();
         newModel.QuickUpdate(m_a, s);
-        double obj = m_obj_fun.getObjValue(newModel);
+        double obj = m_obj_fun.getObjValue(newModel, m_model, m_model_value);
         s.setEntry(m_a.i, m_a.j, 0);
         return obj;
     }
 
     private double Cal_Action_Value()
     {
-        RealVector label_prob = m_model.getLabelProb(m_a);
+        double[] label_prob = Prob_Buffer.Label(m_model.getClass_Num());
+        m_model.getLabelProb(m_a, label_prob);
         double m_obj = 0;
-        int index_of_state = Integer.parseInt(Thread.currentThread().getName());
-        State s = m_s_vec.get(index_of_state+1);
-        for(int i=0; i<label_prob.getDimension(); ++i) {
-            m_obj += label_prob.getEntry(i) * Cal_Label_Value(s, i + 1);
+        for(int i=0; i<label_prob.length; ++i) {
+            m_obj += label_prob[i] * Cal_Label_Value(m_hypo, i + 1);
         }
         return m_obj;
     }
@@ -198,10 +241,8 @@ class PredictValueTask implements Callable<Double> {
     private double Cal_Opt_Action_value()
     {
         double m_obj = 0;
-        int index_of_state = 1;//Integer.parseInt(Thread.currentThread().getName());
-        State s = m_s_vec.get(index_of_state+1);
         for(int i=0; i<m_model.getClass_Num(); ++i) {
-            double value = Cal_Label_Value(s, i + 1);
+            double value = Cal_Label_Value(m_hypo, i + 1);
             if(value>m_obj)
             {
                 m_obj = value;
@@ -210,16 +251,303 @@ class PredictValueTask implements Callable<Double> {
         return m_obj;
     }
 
+    // The value of action a, in this workspace
+    double Value(Action a)
+    {
+        m_a = a;
+        if(m_hypo==null)
+        {
+            m_hypo = new Overlay_State(m_state);
+        }
+        return m_flag_opt ? Cal_Opt_Action_value() : Cal_Action_Value();
+    }
+
+    Action getAction()
+    {
+        return m_a;
+    }
+
+    double getValue()
+    {
+        return m_value;
+    }
+
     @Override
-    public Double call()
+    public PredictValueTask call()
     {
-        if(m_flag_opt)
+        m_value = Value(m_a);
+        return this;
+    }
+}
+
+
+/* Range Task evaluates the actions (as Action_Set codes) of a range into a primitive array. The range is halved
+ * down to chunks of m_grain actions, which the fork-join workers steal from each other, and every chunk runs
+ * in one workspace (see PredictValueTask). Executors other than fork-join pools run the chunks as plain tasks.
+ */
+class Range_Task extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+    // The smallest chunk, and the number of chunks per worker (for the balance of the work stealing)
+    private final static int MIN_GRAIN = 8;
+    private final static int CHUNK_PER_WORKER = 4;
+    private final long[] m_code;
+    private final double[] m_value;
+    private final int m_first, m_last, m_grain;
+    private final State m_state;
+    private final Prob_Model m_model;
+    private final double m_model_value;
+    private final Obj_Function m_obj_fun;
+    private final boolean m_flag_opt;
+
+    Range_Task(long[] codes, double[] values, int first, int last, int grain, State state, Prob_Model model,
+               double model_value, Obj_Function obj_fun, boolean flag_opt)
+    {
+        m_code = codes;
+        m_value = values;
+        m_first = first;
+        m_last = last;
+        m_grain = grain;
+        m_state = state;
+        m_model = model;
+        m_model_value = model_value;
+        m_obj_fun = obj_fun;
+        m_flag_opt = flag_opt;
+    }
+
+    // Write the values of the actions of codes into values
+    static void Evaluate(ExecutorService executor, long[] codes, double[] values, State state, Prob_Model model,
+                         double model_value, Obj_Function obj_fun, boolean flag_opt)
+    {
+        int worker_num = (executor instanceof ForkJoinPool) ? ((ForkJoinPool) executor).getParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        int grain = Math.max(MIN_GRAIN, codes.length/(CHUNK_PER_WORKER*worker_num));
+        if(executor instanceof ForkJoinPool)
+        {
+            Range_Task task = new Range_Task(codes, values, 0, codes.length, grain, state, model, model_value,
+                    obj_fun, flag_opt);
+            // Inside a growing tree the caller is already a worker of the pool, it forks the chunks itself
+            if(ForkJoinTask.getPool()==executor)
+            {
+                task.invoke();
+            }
+            else
+            {
+                ((ForkJoinPool) executor).invoke(task);
+            }
+            return;
+        }
+        List<Callable<Object>> chunks = new ArrayList<>();
+        for(int first=0; first<codes.length; first+=grain)
+        {
+            chunks.add(Executors.callable(new Range_Task(codes, values, first, Math.min(first+grain, codes.length),
+                    grain, state, model, model_value, obj_fun, flag_opt)::EvaluateChunk));
+        }
+        try {
+            executor.invokeAll(chunks);
+        } catch (InterruptedException e) {
+            System.out.println("Multi-Threading Error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(m_last-m_first<=m_grain)
         {
-            return Cal_Opt_Action_value();
+            EvaluateChunk();
         }
         else
         {
-            return Cal_Action_Value();
+            int mid = (m_first+m_last)>>>1;
+            invokeAll(new Range_Task(m_code, m_value, m_first, mid, m_grain, m_state, m_model, m_model_value, m_obj_fun, m_flag_opt),
+                    new Range_Task(m_code, m_value, mid, m_last, m_grain, m_state, m_model, m_model_value, m_obj_fun, m_flag_opt));
         }
     }
-}
\ No newline at end of file
+
+    private void EvaluateChunk()
+    {
+        PredictValueTask workspace = new PredictValueTask(m_state, null, m_model, m_model_value, m_obj_fun, m_flag_opt);
+        // The value does not keep the action, one instance serves the chunk
+        Action a = new Action(0, 0);
+        for(int n=m_first; n<m_last; ++n)
+        {
+            a.i = Action_Set.Task(m_code[n]);
+            a.j = Action_Set.Worker(m_code[n]);
+            m_value[n] = workspace.Value(a);
+        }
+    }
+}
+
+
+/* Top K keeps the k actions of the largest values in a bounded min-heap of primitive codes (see Action_Set),
+ * so the values can be streamed in one by one in O(log k) each.
+ */
+class Top_K {
+    private final long[] m_code;
+    private final double[] m_value;
+    private int m_size;
+
+    Top_K(int k)
+    {
+        m_code = new long[k];
+        m_value = new double[k];
+        m_size = 0;
+    }
+
+    int size()
+    {
+        return m_size;
+    }
+
+    // Keep the action if it is among the k best so far
+    void Offer(long code, double value)
+    {
+        if(m_size<m_code.length)
+        {
+            int n = m_size++;
+            // Sift up
+            while(n>0)
+            {
+                int parent = (n-1)/2;
+                if(m_value[parent]<=value)
+                {
+                    break;
+                }
+                m_code[n] = m_code[parent];
+                m_value[n] = m_value[parent];
+                n = parent;
+            }
+            m_code[n] = code;
+            m_value[n] = value;
+        }
+        else if(m_size>0 && value>m_value[0])
+        {
+            SiftDown(code, value);
+        }
+    }
+
+    // Put the code at the root and move it down to its place among the m_size entries
+    private void SiftDown(long code, double value)
+    {
+        int n = 0;
+        while(true)
+        {
+            int child = 2*n+1;
+            if(child>=m_size)
+            {
+                break;
+            }
+            if(child+1<m_size && m_value[child+1]<m_value[child])
+            {
+                child++;
+            }
+            if(m_value[child]>=value)
+            {
+                break;
+            }
+            m_code[n] = m_code[child];
+            m_value[n] = m_value[child];
+            n = child;
+        }
+        m_code[n] = code;
+        m_value[n] = value;
+    }
+
+    // Empty the heap and get the codes from the best to the worst
+    long[] Sorted()
+    {
+        long[] sorted = new long[m_size];
+        while(m_size>0)
+        {
+            sorted[m_size-1] = m_code[0];
+            m_size--;
+            if(m_size>0)
+            {
+                SiftDown(m_code[m_size], m_value[m_size]);
+            }
+        }
+        return sorted;
+    }
+}
+
+
+/* Action Groups partitions candidate actions (as Action_Set codes) by their model signature (see
+ * Prob_Model.getActionSignature), so one representative per group is evaluated and its value holds for all
+ * the members. Early on, when most tasks and workers sit at the prior, a few groups cover all the actions.
+ * Under a global model every action is its own group. The members of group g are First(g), Next(...), ...
+ */
+class Action_Groups {
+    private final long[] m_code;
+    private final int[] m_head;
+    private final int[] m_next;
+    private int m_group_num;
+
+    Action_Groups(Prob_Model model, long[] codes)
+    {
+        int num = codes.length;
+        m_code = codes;
+        m_head = new int[num];
+        m_next = new int[num];
+        Arrays.fill(m_next, -1);
+        if(model.getActionScope()==Prob_Model.GLOBAL_SCOPE)
+        {
+            for(int n=0; n<num; ++n)
+            {
+                m_head[n] = n;
+            }
+            m_group_num = num;
+            return;
+        }
+        Code_Map group = new Code_Map(num);
+        int[] tail = new int[num];
+        m_group_num = 0;
+        // The signature only reads the action, one instance serves all the codes
+        Action a = new Action(0, 0);
+        for(int n=0; n<num; ++n)
+        {
+            a.i = Action_Set.Task(codes[n]);
+            a.j = Action_Set.Worker(codes[n]);
+            long signature = model.getActionSignature(a);
+            int g = group.get(signature);
+            if(g<0)
+            {
+                group.put(signature, m_group_num);
+                m_head[m_group_num] = n;
+                tail[m_group_num] = n;
+                m_group_num++;
+            }
+            else
+            {
+                m_next[tail[g]] = n;
+                tail[g] = n;
+            }
+        }
+    }
+
+    int size()
+    {
+        return m_group_num;
+    }
+
+    // The codes of the representatives of all the groups
+    long[] getRepresentatives()
+    {
+        long[] codes = new long[m_group_num];
+        for(int g=0; g<m_group_num; ++g)
+        {
+            codes[g] = m_code[m_head[g]];
+        }
+        return codes;
+    }
+
+    // The first member of group g, and the member after member n (-1 at the end)
+    int First(int g)
+    {
+        return m_head[g];
+    }
+
+    int Next(int n)
+    {
+        return m_next[n];
+    }
+}
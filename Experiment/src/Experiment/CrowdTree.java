@@ -1,9 +1,12 @@
 package Experiment;
 
-import org.apache.commons.math3.linear.RealVector;
-
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /* The tree approximates the value function with a d-depth tree.
  * We build the tree with depth-first search.
@@ -11,61 +14,188 @@ import java.util.concurrent.ThreadPoolExecutor;
  */
 class CrowdTree {
     // The depth of the tree
-    private final static int depth = 1;
+    final static int DEFAULT_DEPTH = 1;
     // The width of the sparse tree
-    private final static int width = 5;
+    final static int width = 5;
     // The discount of RL
-    private final static double gamma = 0.9;
+    final static double gamma = 0.9;
     // The root
     final CrowdNode root;
 
 
-    CrowdTree(DVState s_vec, Prob_Model model, Obj_Function obj, List<Action> available_action, ThreadPoolExecutor executor)
+    CrowdTree(State state, Prob_Model model, Obj_Function obj, Action_Set available_action, ExecutorService executor)
     {
-        root = new CrowdNode(null, null, 0, obj, false, 1.0);
-        root.crowdModel = model;
-        root.objValue = obj.getObjValue(model);
-        TreeGrow(root, Math.min(depth, available_action.size()), s_vec, available_action, executor);
+        this(state, model, obj, available_action, executor, false);
+    }
+
+    CrowdTree(State state, Prob_Model model, Obj_Function obj, Action_Set available_action, ExecutorService executor, boolean Sparse_Or_Not)
+    {
+        this(state, model, obj, available_action, executor, Sparse_Or_Not, Transposition_Table.DEFAULT_CAPACITY);
     }
 
-    CrowdTree(DVState s_vec, Prob_Model model, Obj_Function obj, List<Action> available_action, ThreadPoolExecutor executor, boolean Sparse_Or_Not)
+    CrowdTree(State state, Prob_Model model, Obj_Function obj, Action_Set available_action, ExecutorService executor,
+              boolean Sparse_Or_Not, int table_size)
+    {
+        this(state, model, obj, available_action, executor, Sparse_Or_Not, table_size, DEFAULT_DEPTH);
+    }
+
+    // The transposition table keeps at most table_size nodes (0 for no table), the tree is depth actions deep
+    CrowdTree(State state, Prob_Model model, Obj_Function obj, Action_Set available_action, ExecutorService executor,
+              boolean Sparse_Or_Not, int table_size, int depth)
     {
         root = new CrowdNode(null, null, 0, obj, false, 1.0, Sparse_Or_Not);
+        root.transTable = Transposition_Table.For(model, table_size);
         root.crowdModel = model;
         root.objValue = obj.getObjValue(model);
-        TreeGrow(root, Math.min(depth, available_action.size()), s_vec, available_action, executor);
+        TreeGrow(root, Math.min(depth, available_action.size()), new Overlay_State(state), new Action_View(available_action), executor);
     }
 
-    private void TreeGrow(CrowdNode p_node, int d, DVState s_vec, List<Action> available_action, ThreadPoolExecutor executor) {
-        if(d!=0)
+    /* The subtrees are grown in parallel (see Grow_Task), or in the calling thread with the inline executor.
+     * A fork-join executor also grows the trees, so the growth and the evaluations share one set of workers.
+     */
+    private void TreeGrow(CrowdNode p_node, int d, Overlay_State state, Action_View available_action, ExecutorService executor) {
+        Grow_Task task = new Grow_Task(p_node, d, state, available_action, executor);
+        if(executor instanceof Inline_Executor)
+        {
+            task.compute();
+        }
+        else if(executor instanceof ForkJoinPool)
         {
-            // System.out.println("Level "+d+" Before Children: "+(t2.getTime()-t1.getTime()));
-            p_node.Gene_Children(width, s_vec, available_action, executor);
-            // System.out.println("Level "+d+" After Children: "+(t2.getTime()-t1.getTime()));
-            double action_value = -Double.MAX_VALUE;
-            for(List<CrowdNode> action_node: p_node.childNodes)
+            ((ForkJoinPool) executor).invoke(task);
+        }
+        else
+        {
+            RL_Decision.Shared_Pool().invoke(task);
+        }
+    }
+}
+
+/* Grow Task grows the subtree of a node, and forks the subtrees of its children (every observed label of
+ * every child action) as independent tasks. Each child task gets its own overlay of the state with the label
+ * of its action, and a view of the action set without that action (see Action_View), so siblings share
+ * nothing mutable. The leaves need neither. With the inline executor the subtrees are grown one by one in
+ * the calling thread.
+ */
+class Grow_Task extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+    private final CrowdNode m_node;
+    private final int m_depth;
+    private final Overlay_State m_state;
+    private final Action_View m_available_action;
+    private final ExecutorService m_executor;
+
+    Grow_Task(CrowdNode p_node, int d, Overlay_State state, Action_View available_action, ExecutorService executor)
+    {
+        m_node = p_node;
+        m_depth = d;
+        m_state = state;
+        m_available_action = available_action;
+        m_executor = executor;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(m_depth==0)
+        {
+            return;
+        }
+        m_node.Gene_Children(CrowdTree.width, m_state, m_available_action, m_executor);
+        if(m_depth>1)
+        {
+            List<Grow_Task> subtrees = new ArrayList<>();
+            for(List<CrowdNode> action_node: m_node.childNodes)
             {
                 Action parent_action = action_node.get(0).parentAction;
-                int index_of_action = available_action.indexOf(parent_action);
-                available_action.remove(index_of_action);
-                RealVector label_prob = p_node.crowdModel.getLabelProb(parent_action);
-                double this_action_value = 0;
+                // The labels of an action share its view
+                Action_View available_action = m_available_action.Without(parent_action);
                 for(CrowdNode node: action_node)
                 {
-                    s_vec.setEntry(parent_action.i, parent_action.j, node.observedLabel);
-                    TreeGrow(node, d-1, s_vec, available_action, executor);
-                    this_action_value += label_prob.getEntry(node.observedLabel-1)*node.objValue;
+                    Overlay_State state = new Overlay_State(m_state);
+                    state.setEntry(parent_action.i, parent_action.j, node.observedLabel);
+                    subtrees.add(new Grow_Task(node, m_depth-1, state, available_action, m_executor));
                 }
-                s_vec.setEntry(parent_action.i, parent_action.j, 0);
-                available_action.add(index_of_action, parent_action);
-                if (this_action_value>action_value)
+            }
+            if(m_executor instanceof Inline_Executor)
+            {
+                for(Grow_Task subtree: subtrees)
                 {
-                    action_value = this_action_value;
+                    subtree.compute();
                 }
             }
-            p_node.objValue += gamma*(action_value - p_node.objValue);
-            // t2 = new Date();
-            // System.out.println("Level "+d+" Final: "+(t2.getTime()-t1.getTime()));
+            else
+            {
+                invokeAll(subtrees);
+            }
         }
+        double action_value = -Double.MAX_VALUE;
+        for(List<CrowdNode> action_node: m_node.childNodes)
+        {
+            double this_action_value = 0;
+            for(CrowdNode node: action_node)
+            {
+                // The label probability of the action was stored in the node by Gene_Node
+                this_action_value += node.labelProb*node.objValue;
+            }
+            if (this_action_value>action_value)
+            {
+                action_value = this_action_value;
+            }
+        }
+        m_node.objValue += CrowdTree.gamma*(action_value - m_node.objValue);
+    }
+}
+
+/* The transposition table maps the Zobrist hash of a hypothetical label set (see Overlay_State) to the model
+ * and the objective of the node that reached it, so the other orders of the same actions reuse them. It is
+ * bounded to m_capacity nodes (the memory cap) and evicts the least recently used one, and is synchronized
+ * for the parallel tree growth. It only holds for the base state and model of one tree, and only for the
+ * models whose updates do not depend on the order of the labels (see Prob_Model.isOrderInvariant).
+ */
+class Transposition_Table {
+    final static int DEFAULT_CAPACITY = 1<<14;
+    private final Map<Long, Transposition_Entry> m_table;
+
+    // The table of a search on model with at most capacity nodes, null when it may not (or need not) share them
+    static Transposition_Table For(Prob_Model model, int capacity)
+    {
+        return (capacity>0 && model.isOrderInvariant()) ? new Transposition_Table(capacity) : null;
+    }
+
+    Transposition_Table(int capacity)
+    {
+        m_table = new LinkedHashMap<Long, Transposition_Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Transposition_Entry> eldest)
+            {
+                return size()>capacity;
+            }
+        };
+    }
+
+    synchronized Transposition_Entry get(long hash)
+    {
+        return m_table.get(hash);
+    }
+
+    synchronized void put(long hash, Transposition_Entry entry)
+    {
+        m_table.put(hash, entry);
+    }
+
+    synchronized int size()
+    {
+        return m_table.size();
+    }
+}
+
+class Transposition_Entry {
+    final Prob_Model model;
+    final double value;
+
+    Transposition_Entry(Prob_Model node_model, double node_value)
+    {
+        model = node_model;
+        value = node_value;
     }
-}
\ No newline at end of file
+}
@@ -130,6 +130,45 @@ public class Experiment {
         return(mechanism.accuracy_record);
     }
 
+    // Accuracy of the cold and warm started EM on the same label stream, the warm start should not lose accuracy
+    private static void WarmStartCheck(Market_Simulator simulator, int L) {
+        System.out.println("----------------WARM START-----------------");
+        int task_num = simulator.getTask_Num(), worker_num = simulator.getWorker_Num(), class_num = simulator.getClass_Num();
+        List<Action> stream = new ArrayList<>();
+        for(int i=0; i<task_num; ++i)
+        {
+            for(int j=0; j<worker_num; ++j)
+            {
+                stream.add(new Action(i, j));
+            }
+        }
+        Collections.shuffle(stream, new Random(0));
+        double[] accuracy = new double[2];
+        for(int warm=0; warm<2; ++warm)
+        {
+            EM_Model prob_model = new EM_Model(task_num, worker_num, class_num);
+            prob_model.Update_SetUp(warm==1, false, 1000);
+            State state = State.Create(task_num, worker_num, class_num);
+            for(Action a: stream.subList(0, L))
+            {
+                state.setEntry(a.i, a.j, simulator.getLabelStream(a.i, a.j));
+                prob_model.Update(a, state);
+            }
+            for(int i=0; i<task_num; ++i)
+            {
+                if(prob_model.getTaskMaxLabel(i)+1==(int)simulator.getTrue_label().getEntry(i))
+                {
+                    accuracy[warm] += 1.0/task_num;
+                }
+            }
+        }
+        System.out.println("Cold Accuracy: " + accuracy[0] + ", Warm Accuracy: " + accuracy[1]);
+        if(accuracy[1]<accuracy[0]-0.05)
+        {
+            System.out.println("The warm start lost accuracy!!!");
+        }
+    }
+
     public static void test(String[] args) throws InterruptedException {
         Market_Simulator simulator = new Market_Simulator(50, 10);
         int T = 400;//Integer.parseInt(args[0]);
@@ -167,6 +206,7 @@ public class Experiment {
         Market_Simulator simulator = new Market_Simulator(50, 10);
         Exp2(simulator, 50);
         Exp3(simulator, 50);
+        WarmStartCheck(simulator, 150);
         System.out.println(simulator.getReliability_mat().toString());
 //        for(int i=0; i<100; ++i)
 //        {
@@ -1,7 +1,5 @@
 package Experiment;
 
-import org.apache.commons.math3.linear.RealVector;
-
 import static java.lang.Math.log;
 
 /* The Objective Function calculates the desired accuracy metric.
@@ -9,6 +7,40 @@ import static java.lang.Math.log;
  */
 interface Obj_Function {
     double getObjValue(Prob_Model model);
+
+    // Get Prob Value calculates the term of one task from its label distribution (which it may overwrite),
+    // the objective is the sum of the terms of all tasks.
+    double getProbValue(double[] prob);
+
+    // Get Task Value calculates the term of one task of a model.
+    default double getTaskValue(Prob_Model model, int task_no)
+    {
+        double[] prob = Prob_Buffer.Task(model.getClass_Num());
+        model.getTaskLabelProb(task_no, prob);
+        return getProbValue(prob);
+    }
+
+    // The incremental objective of a model overlaid from parent_model, whose objective is parent_value:
+    // only the terms of the dirty tasks are replaced, so the cost is O(changed tasks).
+    default double getObjValue(Prob_Model model, Prob_Model parent_model, double parent_value)
+    {
+        int[] dirty_tasks = model.getDirtyTasks();
+        if(dirty_tasks==null)
+        {
+            return getObjValue(model);
+        }
+        return getObjValue(model, parent_model, parent_value, dirty_tasks);
+    }
+
+    default double getObjValue(Prob_Model model, Prob_Model parent_model, double parent_value, int[] dirty_tasks)
+    {
+        double value = parent_value;
+        for(int i: dirty_tasks)
+        {
+            value += getTaskValue(model, i)-getTaskValue(parent_model, i);
+        }
+        return value;
+    }
 }
 
 /* The confidence objective function calculates the confidence sum[Pr(l^{*}_{i})]
@@ -20,11 +52,20 @@ class Confidence_Obj implements Obj_Function {
         double confidence = 0;
         for(int i=0; i<task_num; ++i)
         {
-            RealVector ProbVec = model.getTaskLabelProb(i, true);
-            confidence += ProbVec.getMaxValue();
+            confidence += getTaskValue(model, i);
         }
         return confidence;
     }
+
+    @Override
+    public double getProbValue(double[] prob) {
+        return Push_Market_Model.MaxOf(prob, 0, prob.length);
+    }
+
+    @Override
+    public double getTaskValue(Prob_Model model, int task_no) {
+        return model.getTaskMaxProb(task_no);
+    }
 }
 
 /* The margin objective function calculates the margin sum[Pr(l^{*}_{i})-Pr(l^{*-1}_{i})]
@@ -36,15 +77,20 @@ class Margin_Obj implements Obj_Function {
         double margin = 0;
         for(int i=0; i<task_num; ++i)
         {
-            RealVector ProbVec = model.getTaskLabelProb(i, true);
-            double max_confidence = ProbVec.getMaxValue();
-            int index_of_max_conf = ProbVec.getMaxIndex();
-            ProbVec.setEntry(index_of_max_conf, 0);
-            double second_max_confidence = ProbVec.getMaxValue();
-            margin += max_confidence - second_max_confidence;
+            margin += getTaskValue(model, i);
         }
         return margin;
     }
+
+    @Override
+    public double getProbValue(double[] prob) {
+        int class_num = prob.length;
+        int index_of_max_conf = Push_Market_Model.ArgMaxOf(prob, 0, class_num);
+        double max_confidence = prob[index_of_max_conf];
+        prob[index_of_max_conf] = 0;
+        double second_max_confidence = Push_Market_Model.MaxOf(prob, 0, class_num);
+        return max_confidence - second_max_confidence;
+    }
 }
 
 
@@ -57,12 +103,19 @@ class Entropy_Obj implements Obj_Function {
         double entropy = 0;
         for(int i=0; i<task_num; ++i)
         {
-            RealVector ProbVec = model.getTaskLabelProb(i, true);
-            for(int k=0; k<ProbVec.getDimension(); ++k)
-            {
-                entropy += ProbVec.getEntry(k)*log(ProbVec.getEntry(k))-0.5*log(0.5);
-            }
+            entropy += getTaskValue(model, i);
+        }
+        return entropy;
+    }
+
+    @Override
+    public double getProbValue(double[] prob) {
+        int class_num = prob.length;
+        double entropy = 0;
+        for(int k=0; k<class_num; ++k)
+        {
+            entropy += prob[k]*log(prob[k])-0.5*log(0.5);
         }
         return entropy;
     }
-}
\ No newline at end of file
+}
@@ -1,8 +1,16 @@
 package Experiment;
 
 import org.apache.commons.math3.linear.*;
+import org.apache.commons.math3.special.Gamma;
 import org.jetbrains.annotations.Contract;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /* The Probability Model memorizes the probability model of a crowd labeling system
  * Created by Zehong on 3/21/2017 0021.
@@ -12,12 +20,48 @@ interface Prob_Model{
     RealVector getLabelProb(Action a);
     // Get Task Label Probability calculates the task label distribution.
     RealVector getTaskLabelProb(int task_no, boolean Prob_or_Not);
+    // The allocation-free versions write the distributions into buf (of length Class Num).
+    void getLabelProb(Action a, double[] buf);
+    void getTaskLabelProb(int task_no, double[] buf);
+    // Get the largest task label probability and its label index (from 0, the first one on ties).
+    double getTaskMaxProb(int task_no);
+    int getTaskMaxLabel(int task_no);
+    // Get Task Label Probability After writes the task label distribution of a.i after action a observes
+    // ob_label, without building the updated model. It gives false when the model has no closed form.
+    // The label of an action only changes the distribution of its task when it gives true.
+    boolean getTaskLabelProbAfter(Action a, int ob_label, double[] buf);
     // Update accurately calculates the probability model corresponding to a new state.
     void Update(Action a, State newS);
     // QuickUpdate roughly calculates the new probability model with high efficiency.
     void QuickUpdate(Action a, State newS);
+    // Batch Update ingests the labels of a list of actions (read from the new state) in one pass.
+    void BatchUpdate(List<Action> actions, State newS);
     // Deep copy a new probability model
     Prob_Model Copy();
+    // Overlay a lightweight copy that shares this model read-only and only stores what its updates change.
+    // It stays valid as long as this model is not updated.
+    Prob_Model Overlay();
+    // Revert an overlay to the model it was overlaid from (dropping all its updates), so one overlay can be
+    // reused as a scratch model. It gives false when the model cannot revert (it is not an overlay).
+    boolean Revert();
+    // Get Base gives the model this overlay (and every overlay made from it) shares read-only, or the model
+    // itself when it is not an overlay.
+    Prob_Model getBase();
+    // Get Dirty Tasks lists the tasks whose label distribution may differ from the model this one was overlaid
+    // from, or gives null when it is unknown (any task may have changed).
+    int[] getDirtyTasks();
+    // Get Action Scope tells which labels may change the value of an action (i,j): only the labels of task i
+    // (TASK_SCOPE), the labels of task i or of worker j (TASK_WORKER_SCOPE), or any label (GLOBAL_SCOPE).
+    int getActionScope();
+    int TASK_SCOPE = 0;
+    int TASK_WORKER_SCOPE = 1;
+    int GLOBAL_SCOPE = 2;
+    // Get Action Signature hashes (64 bits) the model parameters the value of an action depends on, so the
+    // actions of equal signatures have equal values. It is only meaningful out of the GLOBAL_SCOPE.
+    long getActionSignature(Action a);
+    // Is Order Invariant tells whether the model after a set of labels does not depend on the order of their
+    // updates, so the transpositions of a search (see Transposition_Table) may share their models.
+    boolean isOrderInvariant();
     // Get Task Num
     int getTask_Num();
     // Get Worker Num
@@ -61,432 +105,2705 @@ abstract class Push_Market_Model implements Prob_Model
     {
         return m_class_num;
     }
+
+    // Models updated label by label simply run their Update over the batch
+    public void BatchUpdate(List<Action> actions, State newS)
+    {
+        for(Action a: actions)
+        {
+            Update(a, newS);
+        }
+    }
+
+    // A stand-alone model does not track its changes
+    public int[] getDirtyTasks()
+    {
+        return null;
+    }
+
+    // No closed form unless the model provides one
+    public boolean getTaskLabelProbAfter(Action a, int ob_label, double[] buf)
+    {
+        return false;
+    }
+
+    // A label may move the whole model unless the model says otherwise
+    public int getActionScope()
+    {
+        return GLOBAL_SCOPE;
+    }
+
+    // The approximate updates (moment matching, incremental EM) depend on the order of the labels
+    public boolean isOrderInvariant()
+    {
+        return false;
+    }
+
+    // A stand-alone model has nothing to revert to
+    public boolean Revert()
+    {
+        return false;
+    }
+
+    public Prob_Model getBase()
+    {
+        return this;
+    }
+
+    // Without a signature every action stands for itself
+    public long getActionSignature(Action a)
+    {
+        return Action_Set.Encode(a.i, a.j);
+    }
+
+    // Fold a parameter into a signature
+    @Contract(pure = true)
+    static long HashOf(long hash, double v)
+    {
+        long h = (hash^Double.doubleToLongBits(v))*0x9E3779B97F4A7C15L;
+        return h^(h>>>29);
+    }
+
+    // Maximum and its first index of the n entries of v from offset
+    @Contract(pure = true)
+    static double MaxOf(double[] v, int offset, int n)
+    {
+        double max = v[offset];
+        for(int k=offset+1; k<offset+n; ++k)
+        {
+            max = Math.max(max, v[k]);
+        }
+        return max;
+    }
+
+    @Contract(pure = true)
+    static int ArgMaxOf(double[] v, int offset, int n)
+    {
+        int arg = 0;
+        for(int k=1; k<n; ++k)
+        {
+            if(v[offset+k]>v[offset+arg])
+            {
+                arg = k;
+            }
+        }
+        return arg;
+    }
+}
+
+/* Prob Buffer keeps the per-thread scratch vectors of the allocation-free accessors. The label slot holds
+ * the label distribution of an action, the post slot a post-label task distribution, and the task slot
+ * is used by the objective functions.
+ */
+final class Prob_Buffer {
+    private final static ThreadLocal<double[]> m_label = new ThreadLocal<>();
+    private final static ThreadLocal<double[]> m_task = new ThreadLocal<>();
+    private final static ThreadLocal<double[]> m_post = new ThreadLocal<>();
+
+    private Prob_Buffer()
+    {
+    }
+
+    private static double[] Get(ThreadLocal<double[]> slot, int n)
+    {
+        double[] buf = slot.get();
+        if(buf==null || buf.length!=n)
+        {
+            buf = new double[n];
+            slot.set(buf);
+        }
+        return buf;
+    }
+
+    static double[] Label(int class_num)
+    {
+        return Get(m_label, class_num);
+    }
+
+    static double[] Task(int class_num)
+    {
+        return Get(m_task, class_num);
+    }
+
+    static double[] Post(int class_num)
+    {
+        return Get(m_post, class_num);
+    }
+}
+
+
+/* The Label Index memorizes the observed labels as per-task and per-worker adjacency lists,
+ * so that the sweeps over the labels cost O(observed labels) instead of O(tasks x workers).
+ * An overlay index shares the lists of its base read-only and keeps its own labels aside, found through
+ * a Code_Map by (task, worker) and through the Added_Lists by task and by worker.
+ */
+class Label_Index {
+    private final static int[] EMPTY = new int[0];
+    // Adjacency lists of the tasks (worker no and label)
+    private int[][] m_task_worker, m_task_label;
+    private int[] m_task_deg;
+    // Adjacency lists of the workers (task no and label)
+    private int[][] m_worker_task, m_worker_label;
+    private int[] m_worker_deg;
+    // Number of observed labels
+    private int m_size;
+
+    // Base index of an overlay (null for a stand-alone index), and the index it was overlaid from
+    private final Label_Index m_base;
+    private final Label_Index m_source;
+    // Labels of the overlay: new observations, or relabeled observations of the base
+    private int[] m_add_task, m_add_worker, m_add_label;
+    private boolean[] m_add_new;
+    private int m_add_num;
+    // The slot of the label of each (task, worker) code, and the slots of the new observations per task and per worker
+    private Code_Map m_add_slot;
+    private Added_Lists m_task_added, m_worker_added;
+
+    Label_Index(int task_num, int worker_num)
+    {
+        m_base = null;
+        m_source = null;
+        m_task_worker = new int[task_num][];
+        m_task_label = new int[task_num][];
+        m_task_deg = new int[task_num];
+        m_worker_task = new int[worker_num][];
+        m_worker_label = new int[worker_num][];
+        m_worker_deg = new int[worker_num];
+        Arrays.fill(m_task_worker, EMPTY);
+        Arrays.fill(m_task_label, EMPTY);
+        Arrays.fill(m_worker_task, EMPTY);
+        Arrays.fill(m_worker_label, EMPTY);
+    }
+
+    // Deep copy (an overlay is merged into a stand-alone index)
+    Label_Index(Label_Index index)
+    {
+        m_base = null;
+        m_source = null;
+        Label_Index root = (index.m_base==null) ? index : index.m_base;
+        m_task_worker = CopyLists(root.m_task_worker, root.m_task_deg);
+        m_task_label = CopyLists(root.m_task_label, root.m_task_deg);
+        m_task_deg = root.m_task_deg.clone();
+        m_worker_task = CopyLists(root.m_worker_task, root.m_worker_deg);
+        m_worker_label = CopyLists(root.m_worker_label, root.m_worker_deg);
+        m_worker_deg = root.m_worker_deg.clone();
+        m_size = root.m_size;
+        for(int n=0; n<index.m_add_num; ++n)
+        {
+            Add(index.m_add_task[n], index.m_add_worker[n], index.m_add_label[n]);
+        }
+    }
+
+    // Overlay on top of an index (an overlay of an overlay shares the same base)
+    Label_Index(Label_Index index, boolean Overlay_Or_Not)
+    {
+        m_base = (index.m_base==null) ? index : index.m_base;
+        m_source = index;
+        int len = Math.max(4, index.m_add_num);
+        m_add_task = (index.m_add_num==0) ? new int[len] : Arrays.copyOf(index.m_add_task, len);
+        m_add_worker = (index.m_add_num==0) ? new int[len] : Arrays.copyOf(index.m_add_worker, len);
+        m_add_label = (index.m_add_num==0) ? new int[len] : Arrays.copyOf(index.m_add_label, len);
+        m_add_new = (index.m_add_num==0) ? new boolean[len] : Arrays.copyOf(index.m_add_new, len);
+        m_add_num = index.m_add_num;
+        m_add_slot = new Code_Map(len);
+        m_task_added = new Added_Lists(len);
+        m_worker_added = new Added_Lists(len);
+        Reindex();
+    }
+
+    // Rebuild the lookups of the labels of the overlay
+    private void Reindex()
+    {
+        m_add_slot.Clear();
+        m_task_added.Clear();
+        m_worker_added.Clear();
+        for(int t=0; t<m_add_num; ++t)
+        {
+            m_add_slot.put(Action_Set.Encode(m_add_task[t], m_add_worker[t]), t);
+            if(m_add_new[t])
+            {
+                m_task_added.add(m_add_task[t], t);
+                m_worker_added.add(m_add_worker[t], t);
+            }
+        }
+    }
+
+    // Back to the labels of the index this overlay was made from
+    void Revert()
+    {
+        m_add_num = m_source.m_add_num;
+        if(m_add_num>m_add_task.length)
+        {
+            m_add_task = new int[m_add_num];
+            m_add_worker = new int[m_add_num];
+            m_add_label = new int[m_add_num];
+            m_add_new = new boolean[m_add_num];
+        }
+        if(m_add_num>0)
+        {
+            System.arraycopy(m_source.m_add_task, 0, m_add_task, 0, m_add_num);
+            System.arraycopy(m_source.m_add_worker, 0, m_add_worker, 0, m_add_num);
+            System.arraycopy(m_source.m_add_label, 0, m_add_label, 0, m_add_num);
+            System.arraycopy(m_source.m_add_new, 0, m_add_new, 0, m_add_num);
+        }
+        Reindex();
+    }
+
+    private static int[][] CopyLists(int[][] lists, int[] deg)
+    {
+        int[][] new_lists = new int[lists.length][];
+        for(int i=0; i<lists.length; ++i)
+        {
+            new_lists[i] = (deg[i]==0) ? EMPTY : Arrays.copyOf(lists[i], deg[i]);
+        }
+        return new_lists;
+    }
+
+    // Add the label of (task i, worker j) and return its previous label (0 for a new observation)
+    int Add(int i, int j, int label)
+    {
+        if(m_base!=null)
+        {
+            return AddToOverlay(i, j, label);
+        }
+        for(int n=0; n<m_task_deg[i]; ++n)
+        {
+            if(m_task_worker[i][n]==j)
+            {
+                int old_label = m_task_label[i][n];
+                m_task_label[i][n] = label;
+                for(int t=0; t<m_worker_deg[j]; ++t)
+                {
+                    if(m_worker_task[j][t]==i)
+                    {
+                        m_worker_label[j][t] = label;
+                    }
+                }
+                return old_label;
+            }
+        }
+        if(m_task_deg[i]==m_task_worker[i].length)
+        {
+            int new_len = Math.max(4, 2*m_task_deg[i]);
+            m_task_worker[i] = Arrays.copyOf(m_task_worker[i], new_len);
+            m_task_label[i] = Arrays.copyOf(m_task_label[i], new_len);
+        }
+        m_task_worker[i][m_task_deg[i]] = j;
+        m_task_label[i][m_task_deg[i]] = label;
+        m_task_deg[i]++;
+        if(m_worker_deg[j]==m_worker_task[j].length)
+        {
+            int new_len = Math.max(4, 2*m_worker_deg[j]);
+            m_worker_task[j] = Arrays.copyOf(m_worker_task[j], new_len);
+            m_worker_label[j] = Arrays.copyOf(m_worker_label[j], new_len);
+        }
+        m_worker_task[j][m_worker_deg[j]] = i;
+        m_worker_label[j][m_worker_deg[j]] = label;
+        m_worker_deg[j]++;
+        m_size++;
+        return 0;
+    }
+
+    private int AddToOverlay(int i, int j, int label)
+    {
+        long code = Action_Set.Encode(i, j);
+        int slot = m_add_slot.get(code);
+        if(slot>=0)
+        {
+            int old_label = m_add_label[slot];
+            m_add_label[slot] = label;
+            return old_label;
+        }
+        int base_label = m_base.getLabel(i, j);
+        if(m_add_num==m_add_task.length)
+        {
+            int new_len = 2*m_add_num;
+            m_add_task = Arrays.copyOf(m_add_task, new_len);
+            m_add_worker = Arrays.copyOf(m_add_worker, new_len);
+            m_add_label = Arrays.copyOf(m_add_label, new_len);
+            m_add_new = Arrays.copyOf(m_add_new, new_len);
+        }
+        m_add_task[m_add_num] = i;
+        m_add_worker[m_add_num] = j;
+        m_add_label[m_add_num] = label;
+        m_add_new[m_add_num] = (base_label==0);
+        m_add_slot.put(code, m_add_num);
+        if(base_label==0)
+        {
+            m_task_added.add(i, m_add_num);
+            m_worker_added.add(j, m_add_num);
+        }
+        m_add_num++;
+        return base_label;
+    }
+
+    // Get the label of (task i, worker j), 0 if it is not observed
+    int getLabel(int i, int j)
+    {
+        for(int n=0; n<getTaskDegree(i); ++n)
+        {
+            if(getTaskWorker(i, n)==j)
+            {
+                return getTaskLabel(i, n);
+            }
+        }
+        return 0;
+    }
+
+    // The relabeled observation (task i, worker j) of the overlay
+    private int FindRelabeled(int i, int j)
+    {
+        int t = m_add_slot.get(Action_Set.Encode(i, j));
+        return (t>=0 && !m_add_new[t]) ? t : -1;
+    }
+
+    int getTaskDegree(int i)
+    {
+        if(m_base==null)
+        {
+            return m_task_deg[i];
+        }
+        return m_base.getTaskDegree(i)+m_task_added.size(i);
+    }
+
+    int getTaskWorker(int i, int n)
+    {
+        if(m_base==null)
+        {
+            return m_task_worker[i][n];
+        }
+        int base_deg = m_base.getTaskDegree(i);
+        return (n<base_deg) ? m_base.getTaskWorker(i, n) : m_add_worker[m_task_added.get(i, n-base_deg)];
+    }
+
+    int getTaskLabel(int i, int n)
+    {
+        if(m_base==null)
+        {
+            return m_task_label[i][n];
+        }
+        int base_deg = m_base.getTaskDegree(i);
+        if(n<base_deg)
+        {
+            int t = (m_add_num==0) ? -1 : FindRelabeled(i, m_base.getTaskWorker(i, n));
+            return (t<0) ? m_base.getTaskLabel(i, n) : m_add_label[t];
+        }
+        return m_add_label[m_task_added.get(i, n-base_deg)];
+    }
+
+    int getWorkerDegree(int j)
+    {
+        if(m_base==null)
+        {
+            return m_worker_deg[j];
+        }
+        return m_base.getWorkerDegree(j)+m_worker_added.size(j);
+    }
+
+    int getWorkerTask(int j, int n)
+    {
+        if(m_base==null)
+        {
+            return m_worker_task[j][n];
+        }
+        int base_deg = m_base.getWorkerDegree(j);
+        return (n<base_deg) ? m_base.getWorkerTask(j, n) : m_add_task[m_worker_added.get(j, n-base_deg)];
+    }
+
+    int getWorkerLabel(int j, int n)
+    {
+        if(m_base==null)
+        {
+            return m_worker_label[j][n];
+        }
+        int base_deg = m_base.getWorkerDegree(j);
+        if(n<base_deg)
+        {
+            int t = (m_add_num==0) ? -1 : FindRelabeled(m_base.getWorkerTask(j, n), j);
+            return (t<0) ? m_base.getWorkerLabel(j, n) : m_add_label[t];
+        }
+        return m_add_label[m_worker_added.get(j, n-base_deg)];
+    }
+
+    int size()
+    {
+        if(m_base==null)
+        {
+            return m_size;
+        }
+        return m_base.size()+m_task_added.total();
+    }
+}
+
+
+/* Added Lists keeps the slots of the new observations of an overlay index per task (or per worker), in the
+ * order they were added. The lists are found through a Code_Map, so an overlay costs the size of its own
+ * labels rather than of the market, and Clear keeps the arrays for the reverted overlays.
+ */
+class Added_Lists {
+    private final Code_Map m_list_no;
+    private int[][] m_list;
+    private int[] m_len;
+    private int m_list_num;
+    // Number of slots of all the lists
+    private int m_total;
+
+    Added_Lists(int capacity)
+    {
+        m_list_no = new Code_Map(capacity);
+        m_list = new int[Math.max(capacity, 4)][];
+        m_len = new int[m_list.length];
+    }
+
+    void Clear()
+    {
+        m_list_no.Clear();
+        Arrays.fill(m_len, 0, m_list_num, 0);
+        m_list_num = 0;
+        m_total = 0;
+    }
+
+    int size(int no)
+    {
+        int k = m_list_no.get(no);
+        return (k<0) ? 0 : m_len[k];
+    }
+
+    int total()
+    {
+        return m_total;
+    }
+
+    // The n-th slot of the list of no
+    int get(int no, int n)
+    {
+        return m_list[m_list_no.get(no)][n];
+    }
+
+    void add(int no, int slot)
+    {
+        int k = m_list_no.get(no);
+        if(k<0)
+        {
+            if(m_list_num==m_list.length)
+            {
+                m_list = Arrays.copyOf(m_list, 2*m_list_num);
+                m_len = Arrays.copyOf(m_len, 2*m_list_num);
+            }
+            k = m_list_num++;
+            m_list_no.put(no, k);
+            if(m_list[k]==null)
+            {
+                m_list[k] = new int[2];
+            }
+        }
+        if(m_len[k]==m_list[k].length)
+        {
+            m_list[k] = Arrays.copyOf(m_list[k], 2*m_len[k]);
+        }
+        m_list[k][m_len[k]++] = slot;
+        m_total++;
+    }
 }
 
 
 /* Majority Voting probability model
+ * The row of task i holds the label counts of its classes followed by their running sum.
  */
 class MJ_Model extends Push_Market_Model {
 
     // We assume the task labels follow the beta distribution
-    private double[][] m_label_count, m_label_prob;
+    private double[][] m_label_count;
 
     MJ_Model(int task_num, int worker_num, final int class_num)
     {
         super(task_num, worker_num, class_num);
-        m_label_count = new double[task_num][class_num];
-        m_label_prob = new double[task_num][class_num];
+        m_label_count = new double[task_num][class_num+1];
         for(int i=0; i<task_num; ++i)
         {
-            for(int j=0; j<class_num; ++j)
-            {
-                m_label_count[i][j] = 1;
-                m_label_prob[i][j] = 1.0/class_num;
-            }
+            Arrays.fill(m_label_count[i], 0, class_num, 1.0);
+            m_label_count[i][class_num] = class_num;
         }
     }
 
     MJ_Model(MJ_Model model)
     {
         super(model.getTask_Num(), model.getWorker_Num(), model.getClass_Num());
-        m_label_count = new double[m_task_num][m_class_num];
-        m_label_prob = new double[m_task_num][m_class_num];
+        m_label_count = new double[m_task_num][];
         for(int i=0; i<m_task_num; ++i)
         {
-            System.arraycopy(model.m_label_count[i], 0, m_label_count[i], 0, m_class_num);
-            System.arraycopy(model.m_label_prob[i], 0, m_label_prob[i], 0, m_class_num);
+            m_label_count[i] = model.CountRow(i).clone();
+        }
+    }
+
+    // Share the rows of the base model (used by the overlay)
+    MJ_Model(MJ_Model base, boolean Share_Or_Not)
+    {
+        super(base);
+        m_label_count = base.m_label_count;
+    }
+
+    // Read the row of task i
+    double[] CountRow(int i)
+    {
+        return m_label_count[i];
+    }
+
+    // Get the row of task i for writing
+    double[] EditCountRow(int i)
+    {
+        return m_label_count[i];
+    }
+
+    public RealVector getLabelProb(Action a)
+    {
+        double[] prob = new double[m_class_num];
+        getLabelProb(a, prob);
+        return new ArrayRealVector(prob, false);
+    }
+
+    public void getLabelProb(Action a, double[] buf)
+    {
+        getTaskLabelProb(a.i, buf);
+    }
+
+    public void getTaskLabelProb(int task_no, double[] buf)
+    {
+        double[] label_count = CountRow(task_no);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            buf[k] = label_count[k]/label_count[m_class_num];
+        }
+    }
+
+    public double getTaskMaxProb(int task_no)
+    {
+        double[] label_count = CountRow(task_no);
+        return MaxOf(label_count, 0, m_class_num)/label_count[m_class_num];
+    }
+
+    public int getTaskMaxLabel(int task_no)
+    {
+        return ArgMaxOf(CountRow(task_no), 0, m_class_num);
+    }
+
+    // The counts of a task only change with its own labels
+    public int getActionScope()
+    {
+        return TASK_SCOPE;
+    }
+
+    // The counts do not depend on the order of the labels
+    public boolean isOrderInvariant()
+    {
+        return true;
+    }
+
+    // The tasks of equal label counts have equal action values, whatever the worker
+    public long getActionSignature(Action a)
+    {
+        double[] label_count = CountRow(a.i);
+        long hash = 0;
+        for(int k=0; k<m_class_num; ++k)
+        {
+            hash = HashOf(hash, label_count[k]);
+        }
+        return hash;
+    }
+
+    // The label adds one to the count of its class
+    public boolean getTaskLabelProbAfter(Action a, int ob_label, double[] buf)
+    {
+        double[] label_count = CountRow(a.i);
+        double sum = label_count[m_class_num]+1;
+        for(int k=0; k<m_class_num; ++k)
+        {
+            buf[k] = label_count[k]/sum;
+        }
+        buf[ob_label-1] += 1/sum;
+        return true;
+    }
+
+    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Not)
+    {
+        if(Prob_or_Not)
+        {
+            double[] prob = new double[m_class_num];
+            getTaskLabelProb(task_no, prob);
+            return new ArrayRealVector(prob, false);
+        }
+        else
+        {
+            return new ArrayRealVector(Arrays.copyOf(CountRow(task_no), m_class_num), false);
+        }
+    }
+
+    public void Update(Action a, State newS)
+    {
+        int newLabel = (int)newS.getEntry(a.i, a.j);
+        double[] label_count = EditCountRow(a.i);
+        label_count[newLabel-1] += 1;
+        label_count[m_class_num] += 1;
+    }
+
+    public void QuickUpdate(Action a, State newS)
+    {
+        Update(a, newS);
+    }
+
+    public MJ_Model Copy()
+    {
+        return new MJ_Model(this);
+    }
+
+    public Prob_Model Overlay()
+    {
+        return new MJ_Overlay(this);
+    }
+}
+
+/* The overlay of the majority voting model shares the rows of its base model read-only
+ * and keeps private copies of the task rows changed by its updates.
+ */
+class MJ_Overlay extends MJ_Model {
+    private final Map<Integer, double[]> m_count;
+    // Tasks edited since this overlay was created
+    private final Set<Integer> m_dirty;
+    // The overlay this one was made from (null when made from the base model), and the base model
+    private final MJ_Overlay m_source;
+    private final Prob_Model m_base_model;
+
+    MJ_Overlay(MJ_Model base)
+    {
+        super(base, true);
+        m_count = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_source = null;
+        m_base_model = base;
+    }
+
+    MJ_Overlay(MJ_Overlay overlay)
+    {
+        super(overlay, true);
+        m_count = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_source = overlay;
+        m_base_model = overlay.m_base_model;
+        CopyRows();
+    }
+
+    private void CopyRows()
+    {
+        for(Map.Entry<Integer, double[]> e: m_source.m_count.entrySet())
+        {
+            m_count.put(e.getKey(), e.getValue().clone());
+        }
+    }
+
+    public boolean Revert()
+    {
+        m_count.clear();
+        m_dirty.clear();
+        if(m_source!=null)
+        {
+            CopyRows();
+        }
+        return true;
+    }
+
+    double[] CountRow(int i)
+    {
+        double[] row = m_count.get(i);
+        return (row==null) ? super.CountRow(i) : row;
+    }
+
+    double[] EditCountRow(int i)
+    {
+        m_dirty.add(i);
+        return m_count.computeIfAbsent(i, t -> super.CountRow(t).clone());
+    }
+
+    // The overlay of an overlay shares the same base model
+    public Prob_Model Overlay()
+    {
+        return new MJ_Overlay(this);
+    }
+
+    public int[] getDirtyTasks()
+    {
+        return m_dirty.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public Prob_Model getBase()
+    {
+        return m_base_model;
+    }
+}
+
+
+/* Bayesian Update probability model -  JMLR 15
+ * The K-class version is the one-coin generalization: the true class of task i follows Dir(alpha_i) and
+ * worker j gives the true class with probability rho_j ~ Beta(c_j, d_j), or each of the K-1 other classes
+ * with probability (1-rho_j)/(K-1). Update projects the posterior of one label back onto this family by
+ * matching the means and the variance of the observed class (K=2 is the binary model of the paper).
+ * The row of task i holds alpha_i followed by its running sum.
+ */
+class BU_Model extends Push_Market_Model {
+    // The parameters for this probability model
+    private double[][] m_alpha;
+    private double[] m_c,m_d;
+
+    BU_Model(int task_num, int worker_num, int class_num)
+    {
+        super(task_num, worker_num, class_num);
+        m_alpha = new double[task_num][class_num+1];
+        m_c = new double[worker_num];
+        m_d = new double[worker_num];
+        for(int i=0; i<task_num; ++i)
+        {
+            Arrays.fill(m_alpha[i], 0, class_num, 1.0);
+            m_alpha[i][class_num] = class_num;
+        }
+        Arrays.fill(m_c, 4.0);
+        Arrays.fill(m_d, 1.0);
+    }
+
+    BU_Model(BU_Model model)
+    {
+        super(model.getTask_Num(), model.getWorker_Num(), model.getClass_Num());
+        m_alpha = new double[m_task_num][];
+        m_c = new double[m_worker_num];
+        m_d = new double[m_worker_num];
+        for(int i=0; i<m_task_num; ++i)
+        {
+            m_alpha[i] = model.TaskRow(i).clone();
+        }
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            m_c[j] = model.C(j);
+            m_d[j] = model.D(j);
+        }
+    }
+
+    // Share the parameters of the base model (used by the overlay)
+    BU_Model(BU_Model base, boolean Share_Or_Not)
+    {
+        super(base);
+        m_alpha = base.m_alpha;
+        m_c = base.m_c;
+        m_d = base.m_d;
+    }
+
+    // Read the parameters of task i and worker j
+    double[] TaskRow(int i)
+    {
+        return m_alpha[i];
+    }
+
+    double C(int j)
+    {
+        return m_c[j];
+    }
+
+    double D(int j)
+    {
+        return m_d[j];
+    }
+
+    // Write the parameters of task i and worker j
+    double[] EditTaskRow(int i)
+    {
+        return m_alpha[i];
+    }
+
+    void SetWorker(int j, double c, double d)
+    {
+        m_c[j] = c;
+        m_d[j] = d;
+    }
+
+    public BU_Model Copy()
+    {
+        return  new BU_Model(this);
+    }
+
+    public Prob_Model Overlay()
+    {
+        return new BU_Overlay(this);
+    }
+
+    public RealVector getLabelProb(Action a)
+    {
+        double[] prob = new double[m_class_num];
+        getLabelProb(a, prob);
+        return new ArrayRealVector(prob, false);
+    }
+
+    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Para)
+    {
+        double[] prob = new double[m_class_num];
+        getTaskLabelProb(task_no, prob);
+        return new ArrayRealVector(prob, false);
+    }
+
+    public void getLabelProb(Action a, double[] buf)
+    {
+        double[] alpha = TaskRow(a.i);
+        double rou = C(a.j)/(C(a.j)+D(a.j));
+        double miss = (1-rou)/(m_class_num-1);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            double th = alpha[k]/alpha[m_class_num];
+            buf[k] = th*rou + (1-th)*miss;
+        }
+    }
+
+    public void getTaskLabelProb(int task_no, double[] buf)
+    {
+        double[] alpha = TaskRow(task_no);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            buf[k] = alpha[k]/alpha[m_class_num];
+        }
+    }
+
+    public double getTaskMaxProb(int task_no)
+    {
+        double[] alpha = TaskRow(task_no);
+        return MaxOf(alpha, 0, m_class_num)/alpha[m_class_num];
+    }
+
+    public int getTaskMaxLabel(int task_no)
+    {
+        return ArgMaxOf(TaskRow(task_no), 0, m_class_num);
+    }
+
+    // A label changes the Dirichlet of its task and the reliability of its worker
+    public int getActionScope()
+    {
+        return TASK_WORKER_SCOPE;
+    }
+
+    // The value of an action depends on the Dirichlet of its task and the Beta of its worker
+    public long getActionSignature(Action a)
+    {
+        double[] alpha = TaskRow(a.i);
+        long hash = 0;
+        for(int k=0; k<=m_class_num; ++k)
+        {
+            hash = HashOf(hash, alpha[k]);
+        }
+        hash = HashOf(hash, C(a.j));
+        return HashOf(hash, D(a.j));
+    }
+
+    /* The posterior of a label l is a mixture over the true class k of Dir(alpha+e_k)Beta(c+[k==l],d+[k!=l])
+     * with weights pi_k ~ alpha_k*(k==l ? c : d/(K-1)), so E[theta_k] = (alpha_k+pi_k)/(A+1) with A = sum(alpha).
+     * The closed form only needs these means, which the moment matching of Update keeps.
+     */
+    public boolean getTaskLabelProbAfter(Action a, int ob_label, double[] buf)
+    {
+        double[] alpha = TaskRow(a.i);
+        double vc = C(a.j);
+        double miss = D(a.j)/(m_class_num-1);
+        double norm = PostNorm(alpha, vc, miss, ob_label);
+        double va = alpha[m_class_num];
+        for(int k=0; k<m_class_num; ++k)
+        {
+            double pi = alpha[k]*((k==ob_label-1) ? vc : miss)/norm;
+            buf[k] = (alpha[k]+pi)/(va+1);
+        }
+        return true;
+    }
+
+    // Normalizer of the mixture weights pi_k of the posterior
+    @Contract(pure = true)
+    private double PostNorm(double[] alpha, double vc, double miss, int label)
+    {
+        double al = alpha[label-1];
+        return al*vc + (alpha[m_class_num]-al)*miss;
+    }
+
+    public void Update(Action a, State newS)
+    {
+        int label = (int)newS.getEntry(a.i, a.j);
+        if(label<1 || label>m_class_num)
+        {
+            System.out.println("Get Wrong Action!!!");
+            System.exit(1);
+        }
+        double[] alpha = EditTaskRow(a.i);
+        double vc = C(a.j);
+        double vd = D(a.j);
+        double miss = vd/(m_class_num-1);
+        double norm = PostNorm(alpha, vc, miss, label);
+        double va = alpha[m_class_num];
+        double al = alpha[label-1];
+        // The posterior weight of the observed class being the true one
+        double pi_l = al*vc/norm;
+        double Eth = (al+pi_l)/(va+1);
+        double EEth = (al+1)*(al+2*pi_l)/((va+1)*(va+2));
+        double Erou = (vc+pi_l)/(vc+vd+1);
+        double EErou = (vc+1)*(vc+2*pi_l)/((vc+vd+1)*(vc+vd+2));
+        double ti_sum = (Eth-EEth)/(EEth-Eth*Eth);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            double pi = (k==label-1) ? pi_l : alpha[k]*miss/norm;
+            alpha[k] = ti_sum*(alpha[k]+pi)/(va+1);
+        }
+        alpha[m_class_num] = ti_sum;
+        double ti_c = Erou*(Erou-EErou)/(EErou-Erou*Erou);
+        double ti_d = (1-Erou)*(Erou-EErou)/(EErou-Erou*Erou);
+        SetWorker(a.j, ti_c, ti_d);
+    }
+
+    public  void QuickUpdate(Action a, State newS)
+    {
+        Update(a, newS);
+    }
+
+    public void PrintModel()
+    {
+        for(int i=0; i<m_worker_num; ++i)
+        {
+            System.out.print(C(i)/(C(i)+D(i))+",\t");
+        }
+        System.out.println();
+    }
+}
+
+/* The overlay of the Bayesian update model shares the parameters of its base model read-only
+ * and keeps the alpha of the updated tasks and the (c,d) of the updated workers.
+ */
+class BU_Overlay extends BU_Model {
+    private final Map<Integer, double[]> m_task_para, m_worker_para;
+    // Tasks edited since this overlay was created
+    private final Set<Integer> m_dirty;
+    // The overlay this one was made from (null when made from the base model), and the base model
+    private final BU_Overlay m_source;
+    private final Prob_Model m_base_model;
+
+    BU_Overlay(BU_Model base)
+    {
+        super(base, true);
+        m_task_para = new HashMap<>();
+        m_worker_para = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_source = null;
+        m_base_model = base;
+    }
+
+    BU_Overlay(BU_Overlay overlay)
+    {
+        super(overlay, true);
+        m_task_para = new HashMap<>();
+        m_worker_para = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_source = overlay;
+        m_base_model = overlay.m_base_model;
+        CopyParas();
+    }
+
+    private void CopyParas()
+    {
+        for(Map.Entry<Integer, double[]> e: m_source.m_task_para.entrySet())
+        {
+            m_task_para.put(e.getKey(), e.getValue().clone());
+        }
+        for(Map.Entry<Integer, double[]> e: m_source.m_worker_para.entrySet())
+        {
+            m_worker_para.put(e.getKey(), e.getValue().clone());
+        }
+    }
+
+    public boolean Revert()
+    {
+        m_task_para.clear();
+        m_worker_para.clear();
+        m_dirty.clear();
+        if(m_source!=null)
+        {
+            CopyParas();
+        }
+        return true;
+    }
+
+    double[] TaskRow(int i)
+    {
+        double[] para = m_task_para.get(i);
+        return (para==null) ? super.TaskRow(i) : para;
+    }
+
+    double C(int j)
+    {
+        double[] para = m_worker_para.get(j);
+        return (para==null) ? super.C(j) : para[0];
+    }
+
+    double D(int j)
+    {
+        double[] para = m_worker_para.get(j);
+        return (para==null) ? super.D(j) : para[1];
+    }
+
+    double[] EditTaskRow(int i)
+    {
+        m_dirty.add(i);
+        return m_task_para.computeIfAbsent(i, t -> super.TaskRow(t).clone());
+    }
+
+    void SetWorker(int j, double c, double d)
+    {
+        m_worker_para.put(j, new double[]{c, d});
+    }
+
+    // The overlay of an overlay shares the same base model
+    public Prob_Model Overlay()
+    {
+        return new BU_Overlay(this);
+    }
+
+    public int[] getDirtyTasks()
+    {
+        return m_dirty.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public Prob_Model getBase()
+    {
+        return m_base_model;
+    }
+}
+
+/* EM probability model
+ * The parameters are stored flat: p_label[i*K+k] is the posterior of class k of task i, and
+ * c_tensor[(j*K+k)*K+l] the probability that worker j labels class k as l (K classes).
+ */
+class EM_Model extends Push_Market_Model {
+
+    private double[] c_tensor;
+    private double[] p_label;
+    // log(c_tensor+1e-20), recalculated with the confusion matrices so that the E-step only adds
+    private double[] log_c_tensor;
+    // Soft confusion counts sum_i p_label[i][k]*[label_ij==l] (sufficient statistics of the M-step)
+    private double[] c_count;
+    // Size of a confusion matrix
+    private final int m_mat_size;
+    // Flag of the incremental QuickUpdate
+    private final boolean m_incremental;
+    // Update settings: warm start from the current posterior, SQUAREM acceleration and iteration cap
+    private boolean m_warm_start = false;
+    // Weight of the diagonal in the confusion matrices of a warm start (see WarmModel)
+    private final static double WARM_SMOOTHING = 0.5;
+    private boolean m_accelerate = false;
+    private int m_max_iter = 1000;
+    // Number of EM sweeps run by the last Update
+    private int m_iter = 0;
+    // Fork-join pool of the parallel sweeps (null for sequential sweeps) and the number of task parts
+    private ForkJoinPool m_pool = null;
+    private int m_part_num = 1;
+    // Soft counts of each task part, merged in the order of the parts
+    private double[][] m_part_count;
+    // Online mode: mini-batch size in labels and step sizes gamma_t = (t+m_step_offset)^(-m_step_power)
+    private boolean m_online = false;
+    private int m_batch_size = 1;
+    private double m_step_offset = 0, m_step_power = 1;
+    // Number of mini-batches processed
+    private int m_step = 0;
+    // The running statistics are c_count*m_count_scale, so that decaying them only rescales this factor
+    private double m_count_scale = 1.0;
+    // Count scale when the statistics of each task were added
+    private double[] m_task_scale;
+    // Tasks of the pending mini-batch, their number and the number of pending labels
+    private int[] m_batch_task;
+    private boolean[] m_task_pending;
+    private int m_batch_task_num = 0, m_batch_label_num = 0;
+    // Scratch buffers of one task posterior
+    private final double[] m_buf, m_delta;
+    // Observed labels
+    final Label_Index m_index;
+
+    EM_Model(int task_num, int worker_num, int class_num)
+    {
+        this(task_num, worker_num, class_num, false);
+    }
+
+    EM_Model(int task_num, int worker_num, int class_num, boolean Incremental_Or_Not)
+    {
+        super(task_num,worker_num,class_num);
+        m_mat_size = class_num*class_num;
+        c_tensor = new double[worker_num*m_mat_size];
+        log_c_tensor = new double[worker_num*m_mat_size];
+        p_label = new double[task_num*class_num];
+        c_count = new double[worker_num*m_mat_size];
+        m_incremental = Incremental_Or_Not;
+        m_buf = new double[class_num];
+        m_delta = new double[class_num];
+        m_index = new Label_Index(task_num, worker_num);
+        InitModel();
+    }
+
+    // Set up the EM loop of Update
+    void Update_SetUp(boolean Warm_Or_Not, boolean Accelerate_Or_Not, int max_iteration)
+    {
+        m_warm_start = Warm_Or_Not;
+        m_accelerate = Accelerate_Or_Not;
+        m_max_iter = max_iteration;
+    }
+
+    /* Run the sweeps of Update on a fork-join pool, with the tasks cut into num_of_parts ranges.
+     * The E-step of a part and its soft counts are computed by one fork-join task, and the part counts
+     * are merged in the order of the parts, so the result only depends on num_of_parts.
+     */
+    void Parallel_SetUp(ForkJoinPool pool, int num_of_parts)
+    {
+        m_pool = pool;
+        m_part_num = Math.max(1, Math.min(num_of_parts, m_task_num));
+        m_part_count = (pool==null) ? null : new double[m_part_num][m_worker_num*m_mat_size];
+    }
+
+    /* Online mode of Update (stochastic EM in the form of Cappe & Moulines 2009). The labels are
+     * processed in mini-batches of batch_size labels: the statistics of the tasks of the batch are
+     * replaced with those of their new posteriors, and the rest decay as s_t = (1-gamma_t)*s_{t-1}
+     * in the units of one label, i.e. by (1-gamma_t)*gamma_{t-1}/gamma_t per batch. step_power in
+     * (0.5,1] sets the forgetting, step_power = 1 keeps all the labels (incremental EM). Only the tasks
+     * of the batch and their workers are touched, so the cost per label does not grow with the history.
+     */
+    void Online_SetUp(int batch_size, double step_offset, double step_power)
+    {
+        m_online = true;
+        m_batch_size = Math.max(1, batch_size);
+        m_step_offset = Math.max(0.0, step_offset);
+        m_step_power = step_power;
+        m_step = 0;
+        m_task_scale = new double[m_task_num];
+        m_task_pending = new boolean[m_task_num];
+        m_batch_task = new int[m_batch_size];
+        // The running statistics start from the current posterior
+        AccumulateCounts();
+    }
+
+    // Get the number of EM sweeps run by the last Update
+    int getIterations()
+    {
+        return m_iter;
+    }
+
+    private void InitModel()
+    {
+        Arrays.fill(c_tensor, 0.0);
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            for(int k=0; k<m_class_num; k++)
+            {
+                c_tensor[j*m_mat_size+k*m_class_num+k] = 1.0;
+            }
+        }
+        UpdateLogTensor();
+        Arrays.fill(p_label, 1.0/m_class_num);
+    }
+
+    /* The warm start keeps the posteriors but pulls the confusion matrices halfway back to the diagonal of
+     * InitModel. Otherwise the uniform (or label-swapped) matrices, which are fixed points of EM, would never
+     * be left once a worker drifted there on few labels.
+     */
+    private void WarmModel()
+    {
+        for(int n=0; n<c_tensor.length; ++n)
+        {
+            c_tensor[n] *= 1.0-WARM_SMOOTHING;
+        }
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            for(int k=0; k<m_class_num; k++)
+            {
+                c_tensor[j*m_mat_size+k*m_class_num+k] += WARM_SMOOTHING;
+            }
+        }
+        UpdateLogTensor();
+    }
+
+    private void UpdateLogTensor()
+    {
+        for(int n=0; n<c_tensor.length; ++n)
+        {
+            log_c_tensor[n] = Math.log(c_tensor[n]+1e-20);
+        }
+    }
+
+    EM_Model(EM_Model model)
+    {
+        super(model);
+        m_mat_size = model.m_mat_size;
+        c_tensor = model.c_tensor.clone();
+        log_c_tensor = model.log_c_tensor.clone();
+        p_label = model.p_label.clone();
+        c_count = model.c_count.clone();
+        m_incremental = model.m_incremental;
+        m_warm_start = model.m_warm_start;
+        m_accelerate = model.m_accelerate;
+        m_max_iter = model.m_max_iter;
+        m_online = model.m_online;
+        m_batch_size = model.m_batch_size;
+        m_step_offset = model.m_step_offset;
+        m_step_power = model.m_step_power;
+        m_step = model.m_step;
+        m_count_scale = model.m_count_scale;
+        if(m_online)
+        {
+            m_task_scale = model.m_task_scale.clone();
+            m_task_pending = model.m_task_pending.clone();
+            m_batch_task = model.m_batch_task.clone();
+            m_batch_task_num = model.m_batch_task_num;
+            m_batch_label_num = model.m_batch_label_num;
+        }
+        m_buf = new double[m_class_num];
+        m_delta = new double[m_class_num];
+        m_index = new Label_Index(model.m_index);
+        model.CopyOverlayTo(this);
+    }
+
+    // Share the parameters of the base model (used by the overlay)
+    EM_Model(EM_Model base, Label_Index index)
+    {
+        super(base);
+        m_mat_size = base.m_mat_size;
+        c_tensor = base.c_tensor;
+        log_c_tensor = base.log_c_tensor;
+        p_label = base.p_label;
+        c_count = base.c_count;
+        m_incremental = base.m_incremental;
+        m_warm_start = base.m_warm_start;
+        m_accelerate = base.m_accelerate;
+        m_max_iter = base.m_max_iter;
+        m_online = base.m_online;
+        m_batch_size = base.m_batch_size;
+        m_step_offset = base.m_step_offset;
+        m_step_power = base.m_step_power;
+        m_step = base.m_step;
+        m_count_scale = base.m_count_scale;
+        m_task_scale = base.m_task_scale;
+        m_task_pending = base.m_task_pending;
+        m_batch_task = base.m_batch_task;
+        m_batch_task_num = base.m_batch_task_num;
+        m_batch_label_num = base.m_batch_label_num;
+        m_buf = new double[m_class_num];
+        m_delta = new double[m_class_num];
+        m_index = index;
+    }
+
+    /* Storage of the posterior of task i and of the matrices of worker j: the array holding them and
+     * the offset of their first entry. Edit makes them private before writing (used by the overlay).
+     */
+    double[] TaskArray(int i)
+    {
+        return p_label;
+    }
+
+    int TaskOffset(int i)
+    {
+        return i*m_class_num;
+    }
+
+    double[] ConfArray(int j)
+    {
+        return c_tensor;
+    }
+
+    double[] LogConfArray(int j)
+    {
+        return log_c_tensor;
+    }
+
+    double[] CountArray(int j)
+    {
+        return c_count;
+    }
+
+    int WorkerOffset(int j)
+    {
+        return j*m_mat_size;
+    }
+
+    void EditTask(int i)
+    {
+    }
+
+    void EditWorker(int j)
+    {
+    }
+
+    // Write the private parameters of an overlay into a stand-alone copy
+    void CopyOverlayTo(EM_Model model)
+    {
+    }
+
+    public RealVector getLabelProb(Action a)
+    {
+        double[] p = new double[m_class_num];
+        getLabelProb(a, p);
+        return new ArrayRealVector(p, false);
+    }
+
+    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Para)
+    {
+        int task_offset = TaskOffset(task_no);
+        return new ArrayRealVector(Arrays.copyOfRange(TaskArray(task_no), task_offset, task_offset+m_class_num));
+    }
+
+    public void getLabelProb(Action a, double[] buf)
+    {
+        double[] task_prob = TaskArray(a.i);
+        int task_offset = TaskOffset(a.i);
+        double[] conf = ConfArray(a.j);
+        int conf_offset = WorkerOffset(a.j);
+        for(int i=0; i<m_class_num; ++i)
+        {
+            buf[i] = 0;
+            for(int j=0; j<m_class_num; ++j)
+            {
+                buf[i] += task_prob[task_offset+j]*conf[conf_offset+j*m_class_num+i];
+            }
+        }
+    }
+
+    public void getTaskLabelProb(int task_no, double[] buf)
+    {
+        System.arraycopy(TaskArray(task_no), TaskOffset(task_no), buf, 0, m_class_num);
+    }
+
+    public double getTaskMaxProb(int task_no)
+    {
+        return MaxOf(TaskArray(task_no), TaskOffset(task_no), m_class_num);
+    }
+
+    public int getTaskMaxLabel(int task_no)
+    {
+        return ArgMaxOf(TaskArray(task_no), TaskOffset(task_no), m_class_num);
+    }
+
+    private void PIteration()
+    {
+        for(int i=0; i<m_task_num; ++i)
+        {
+            EStep(i);
+        }
+    }
+
+    // Calculate the posterior of task i from the current confusion matrices
+    private void EStep(int i)
+    {
+        EditTask(i);
+        double[] task_prob = TaskArray(i);
+        int task_offset = TaskOffset(i);
+        Arrays.fill(task_prob, task_offset, task_offset+m_class_num, 0.0);
+        for(int n=0; n<m_index.getTaskDegree(i); ++n)
+        {
+            int j = m_index.getTaskWorker(i, n);
+            double[] log_conf = LogConfArray(j);
+            int conf_offset = WorkerOffset(j)+m_index.getTaskLabel(i, n)-1;
+            for(int k=0; k<m_class_num; ++k)
+            {
+                task_prob[task_offset+k] += log_conf[conf_offset+k*m_class_num];
+            }
+        }
+        double prob_sum = 0;
+        for(int k=task_offset; k<task_offset+m_class_num; ++k)
+        {
+            task_prob[k] = Math.exp(task_prob[k]);
+            prob_sum += task_prob[k];
+        }
+        for(int k=task_offset; k<task_offset+m_class_num; ++k)
+        {
+            task_prob[k] /= prob_sum;
+        }
+    }
+
+    private void MIteration()
+    {
+        AccumulateCounts();
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            NormalizeWorker(j);
+        }
+    }
+
+    // Collect the soft confusion counts of the current posterior (this also restarts the online statistics)
+    private void AccumulateCounts()
+    {
+        Arrays.fill(c_count, 0.0);
+        m_count_scale = 1.0;
+        if(m_online)
+        {
+            Arrays.fill(m_task_scale, 1.0);
+            for(int n=0; n<m_batch_task_num; ++n)
+            {
+                m_task_pending[m_batch_task[n]] = false;
+            }
+            m_batch_task_num = 0;
+            m_batch_label_num = 0;
+        }
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            for(int n=0; n<m_index.getWorkerDegree(j); ++n)
+            {
+                int task_offset = m_index.getWorkerTask(j, n)*m_class_num;
+                int count_offset = j*m_mat_size+m_index.getWorkerLabel(j, n)-1;
+                for(int k=0; k<m_class_num; ++k)
+                {
+                    c_count[count_offset+k*m_class_num] += p_label[task_offset+k];
+                }
+            }
+        }
+    }
+
+    // Calculate the confusion matrix (and its log) of worker j from its soft counts
+    private void NormalizeWorker(int j)
+    {
+        EditWorker(j);
+        double[] count = CountArray(j);
+        double[] conf = ConfArray(j);
+        double[] log_conf = LogConfArray(j);
+        int offset = WorkerOffset(j);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            int row = offset+k*m_class_num;
+            double prob_sum = 0;
+            for(int t=row; t<row+m_class_num; ++t)
+            {
+                // Incremental updates may leave rounding residues below zero
+                count[t] = Math.max(count[t], 0.0);
+                prob_sum += count[t];
+            }
+            for(int t=0; t<m_class_num; ++t)
+            {
+                if(prob_sum!=0)
+                {
+                    conf[row+t] = count[row+t]/prob_sum;
+                }
+                else
+                {
+                    conf[row+t] = (t==k) ? 1.0 : 0.0;
+                }
+                log_conf[row+t] = Math.log(conf[row+t]+1e-20);
+            }
+        }
+    }
+
+    // Add delta (in the units of c_count) to the soft counts of the labels of task i
+    private void AddTaskCounts(int i, double[] delta)
+    {
+        for(int n=0; n<m_index.getTaskDegree(i); ++n)
+        {
+            int j = m_index.getTaskWorker(i, n);
+            EditWorker(j);
+            double[] count = CountArray(j);
+            int count_offset = WorkerOffset(j)+m_index.getTaskLabel(i, n)-1;
+            for(int k=0; k<m_class_num; ++k)
+            {
+                count[count_offset+k*m_class_num] += delta[k];
+            }
+        }
+    }
+
+    // Recalculate the posterior of task i and move its weight in the soft counts of its workers
+    private void RefreshTask(int i)
+    {
+        System.arraycopy(TaskArray(i), TaskOffset(i), m_buf, 0, m_class_num);
+        EStep(i);
+        double[] task_prob = TaskArray(i);
+        int task_offset = TaskOffset(i);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            m_delta[k] = (task_prob[task_offset+k]-m_buf[k])/m_count_scale;
+        }
+        AddTaskCounts(i, m_delta);
+    }
+
+    @Contract(pure = true)
+    private double Calc_c_Diff(double[] c0)
+    {
+        double c_diff = 0;
+        for(int n=0; n<c_tensor.length; ++n)
+        {
+            c_diff += Math.abs(c_tensor[n]-c0[n]);
+        }
+        return(c_diff);
+    }
+
+    private void c_clone(double[] cN)
+    {
+        System.arraycopy(c_tensor, 0, cN, 0, c_tensor.length);
+    }
+
+    public void Update(Action a, State newS)
+    {
+        if(m_online)
+        {
+            OnlineUpdate(a, newS);
+            return;
+        }
+        m_index.Add(a.i, a.j, (int)newS.getEntry(a.i, a.j));
+        RunEM();
+    }
+
+    // All the labels of the batch enter the index before one EM run
+    public void BatchUpdate(List<Action> actions, State newS)
+    {
+        if(m_online)
+        {
+            for(Action a: actions)
+            {
+                OnlineUpdate(a, newS);
+            }
+            return;
+        }
+        for(Action a: actions)
+        {
+            m_index.Add(a.i, a.j, (int)newS.getEntry(a.i, a.j));
+        }
+        if(!actions.isEmpty())
+        {
+            RunEM();
+        }
+    }
+
+    // Run EM on the current labels
+    private void RunEM()
+    {
+        m_iter = 0;
+        double[] c0 = new double[c_tensor.length];
+        if(m_warm_start)
+        {
+            WarmModel();
+            Converge(c0);
+            // Label swaps have the same likelihood, so only the symmetry breaking of the diagonal tells them apart
+            if(DiagonalMass()<=1.0/m_class_num)
+            {
+                int warm_iter = m_iter;
+                m_iter = 0;
+                InitModel();
+                Converge(c0);
+                m_iter += warm_iter;
+            }
+        }
+        else
+        {
+            InitModel();
+            Converge(c0);
+        }
+        if(m_pool!=null)
+        {
+            m_pool.invoke(new EM_Sweep_Task(this, 0, m_part_num, false));
+        }
+        else
+        {
+            PIteration();
+        }
+        if(m_incremental)
+        {
+            AccumulateCounts();
+        }
+    }
+
+    // Run EM sweeps from the current model until the confusion matrices settle
+    private void Converge(double[] c0)
+    {
+        if(m_accelerate)
+        {
+            SquaremLoop(c0);
+        }
+        else
+        {
+            do {
+                c_clone(c0);
+                EMSweep();
+            }while(Calc_c_Diff(c0)>1e-6 && m_iter<m_max_iter);
+        }
+    }
+
+    // Mean diagonal of the confusion matrices weighted by the labels of each worker (1/K for uniform matrices)
+    private double DiagonalMass()
+    {
+        double mass = 0;
+        int label_num = 0;
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            int degree = m_index.getWorkerDegree(j);
+            for(int k=0; k<m_class_num; ++k)
+            {
+                mass += degree*c_tensor[j*m_mat_size+k*m_class_num+k];
+            }
+            label_num += degree;
+        }
+        return (label_num==0) ? 1.0 : mass/(label_num*m_class_num);
+    }
+
+    // Queue the label in the mini-batch, its task leaves the running statistics until the batch is processed
+    private void OnlineUpdate(Action a, State newS)
+    {
+        if(!m_task_pending[a.i])
+        {
+            double[] task_prob = TaskArray(a.i);
+            int task_offset = TaskOffset(a.i);
+            for(int k=0; k<m_class_num; ++k)
+            {
+                m_delta[k] = -task_prob[task_offset+k]/m_task_scale[a.i];
+            }
+            AddTaskCounts(a.i, m_delta);
+            m_task_pending[a.i] = true;
+            m_batch_task[m_batch_task_num++] = a.i;
+        }
+        m_index.Add(a.i, a.j, (int)newS.getEntry(a.i, a.j));
+        if(++m_batch_label_num>=m_batch_size)
+        {
+            FlushBatch();
+        }
+    }
+
+    // Process the pending mini-batch of the online mode
+    void FlushBatch()
+    {
+        if(m_batch_task_num==0)
+        {
+            return;
+        }
+        m_step++;
+        if(m_step>1)
+        {
+            double gamma = Math.pow(m_step+m_step_offset, -m_step_power);
+            double last_gamma = Math.pow(m_step-1+m_step_offset, -m_step_power);
+            m_count_scale *= (1-gamma)*last_gamma/gamma;
+        }
+        if(m_count_scale<1e-100)
+        {
+            // Fold the scale into the counts before it underflows
+            for(int n=0; n<c_count.length; ++n)
+            {
+                c_count[n] *= m_count_scale;
+            }
+            for(int i=0; i<m_task_num; ++i)
+            {
+                m_task_scale[i] /= m_count_scale;
+            }
+            m_count_scale = 1.0;
+        }
+        // E-step of the batch tasks, whose statistics enter with the weight of one label each
+        for(int n=0; n<m_batch_task_num; ++n)
+        {
+            int i = m_batch_task[n];
+            EStep(i);
+            double[] task_prob = TaskArray(i);
+            int task_offset = TaskOffset(i);
+            for(int k=0; k<m_class_num; ++k)
+            {
+                m_delta[k] = task_prob[task_offset+k]/m_count_scale;
+            }
+            AddTaskCounts(i, m_delta);
+            m_task_scale[i] = m_count_scale;
+            m_task_pending[i] = false;
+        }
+        // M-step of their workers
+        for(int n=0; n<m_batch_task_num; ++n)
+        {
+            int i = m_batch_task[n];
+            for(int t=0; t<m_index.getTaskDegree(i); ++t)
+            {
+                NormalizeWorker(m_index.getTaskWorker(i, t));
+            }
+        }
+        m_batch_task_num = 0;
+        m_batch_label_num = 0;
+    }
+
+    // One EM map of the confusion tensor
+    private void EMSweep()
+    {
+        if(m_pool!=null)
+        {
+            m_pool.invoke(new EM_Sweep_Task(this, 0, m_part_num, true));
+            for(int n=0; n<c_count.length; ++n)
+            {
+                double count = 0;
+                for(double[] part_count: m_part_count)
+                {
+                    count += part_count[n];
+                }
+                c_count[n] = count;
+            }
+            for(int j=0; j<m_worker_num; ++j)
+            {
+                NormalizeWorker(j);
+            }
+        }
+        else
+        {
+            PIteration();
+            MIteration();
+        }
+        m_iter++;
+    }
+
+    // E-step of a part of the tasks, with its soft counts if required (run by EM_Sweep_Task)
+    void SweepPart(int part, boolean Count_Or_Not)
+    {
+        int first_task = (int)((long)m_task_num*part/m_part_num);
+        int last_task = (int)((long)m_task_num*(part+1)/m_part_num);
+        double[] part_count = m_part_count[part];
+        if(Count_Or_Not)
+        {
+            Arrays.fill(part_count, 0.0);
+        }
+        for(int i=first_task; i<last_task; ++i)
+        {
+            EStep(i);
+            if(Count_Or_Not)
+            {
+                for(int n=0; n<m_index.getTaskDegree(i); ++n)
+                {
+                    int offset = m_index.getTaskWorker(i, n)*m_mat_size+m_index.getTaskLabel(i, n)-1;
+                    for(int k=0; k<m_class_num; ++k)
+                    {
+                        part_count[offset+k*m_class_num] += p_label[i*m_class_num+k];
+                    }
+                }
+            }
+        }
+    }
+
+    /* SQUAREM (Varadhan & Roland 2008): two EM maps give r = F(c0)-c0 and v = F(F(c0))-2F(c0)+c0,
+     * the extrapolation c0-2*alpha*r+alpha^2*v with alpha = -|r|/|v| (alpha<=-1, where alpha=-1 is the
+     * plain double step) is projected back onto the confusion simplex and stabilized by one more map.
+     */
+    private void SquaremLoop(double[] c0)
+    {
+        double[] c1 = new double[c_tensor.length];
+        double[] c2 = new double[c_tensor.length];
+        while(true)
+        {
+            c_clone(c0);
+            EMSweep();
+            if(Calc_c_Diff(c0)<=1e-6 || m_iter>=m_max_iter)
+            {
+                break;
+            }
+            c_clone(c1);
+            EMSweep();
+            if(Calc_c_Diff(c1)<=1e-6 || m_iter>=m_max_iter)
+            {
+                break;
+            }
+            c_clone(c2);
+            double r_norm = 0, v_norm = 0;
+            for(int n=0; n<c_tensor.length; ++n)
+            {
+                double r = c1[n]-c0[n];
+                double v = c2[n]-2*c1[n]+c0[n];
+                r_norm += r*r;
+                v_norm += v*v;
+            }
+            if(v_norm==0)
+            {
+                continue;
+            }
+            double alpha = Math.min(-Math.sqrt(r_norm/v_norm), -1.0);
+            for(int row=0; row<c_tensor.length; row+=m_class_num)
+            {
+                double prob_sum = 0;
+                for(int n=row; n<row+m_class_num; ++n)
+                {
+                    double r = c1[n]-c0[n];
+                    double v = c2[n]-2*c1[n]+c0[n];
+                    c_tensor[n] = Math.max(c0[n]-2*alpha*r+alpha*alpha*v, 0.0);
+                    prob_sum += c_tensor[n];
+                }
+                for(int n=row; n<row+m_class_num; ++n)
+                {
+                    c_tensor[n] = (prob_sum>0) ? c_tensor[n]/prob_sum : c2[n];
+                }
+            }
+            UpdateLogTensor();
+            // Stabilization map, the next round starts from it
+            EMSweep();
+            if(m_iter>=m_max_iter)
+            {
+                break;
+            }
+        }
+    }
+
+    /* The full QuickUpdate runs two EM sweeps over the whole market. The incremental one runs the same
+     * two rounds on the neighbourhood of the new label only: the posteriors of the tasks labeled by
+     * worker a.j (a.i included) and the confusion matrix of a.j, rebuilt from the soft counts c_count.
+     * RefreshTask keeps c_count in step with p_label, so the cost is O(labels of a.j's tasks).
+     *
+     * Error bound against the full sweep: every other worker j keeps its confusion matrix although its
+     * soft counts moved. If D_j is the L1 change of the refreshed posteriors over the tasks j shares
+     * with a.j, and N_jk the soft count of row k of j, each skipped entry is off by at most
+     * 2*D_j/(N_jk-D_j). A posterior skipped by the update is then off by at most exp(2*e)-1 in L1,
+     * where e sums the relative changes of the confusion entries it uses. D_j only involves the tasks
+     * shared with a.j, so the error shrinks as 1/N_jk when workers accumulate labels (plus the 1e-6
+     * tolerance of Update, since c_count is resynchronized with the converged posterior).
+     */
+    public  void QuickUpdate(Action a, State newS)
+    {
+        int ob_label = (int)newS.getEntry(a.i, a.j);
+        int old_label = m_index.Add(a.i, a.j, ob_label);
+        if(m_incremental)
+        {
+            // The new label enters the soft counts with the current posterior of task a.i
+            double[] task_prob = TaskArray(a.i);
+            int task_offset = TaskOffset(a.i);
+            EditWorker(a.j);
+            double[] count = CountArray(a.j);
+            int count_offset = WorkerOffset(a.j);
+            for(int k=0; k<m_class_num; ++k)
+            {
+                double weight = task_prob[task_offset+k]/m_count_scale;
+                if(old_label>0)
+                {
+                    count[count_offset+k*m_class_num+old_label-1] -= weight;
+                }
+                count[count_offset+k*m_class_num+ob_label-1] += weight;
+            }
+            for(int r=0; r<2; ++r)
+            {
+                RefreshWorkerTasks(a.j);
+                NormalizeWorker(a.j);
+            }
+            RefreshWorkerTasks(a.j);
+        }
+        else
+        {
+            for(int i=0; i<2; ++i)
+            {
+                PIteration();
+                MIteration();
+            }
+            PIteration();
+        }
+    }
+
+    // Refresh the posteriors of all the tasks labeled by worker j
+    private void RefreshWorkerTasks(int j)
+    {
+        for(int n=0; n<m_index.getWorkerDegree(j); ++n)
+        {
+            RefreshTask(m_index.getWorkerTask(j, n));
+        }
+    }
+
+    public EM_Model Copy()
+    {
+        return new EM_Model(this);
+    }
+
+    // Only the incremental QuickUpdate is local enough for an overlay
+    public Prob_Model Overlay()
+    {
+        return m_incremental ? new EM_Overlay(this) : Copy();
+    }
+
+    void PrintModel()
+    {
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            //System.out.print("Worker "+j+": ");
+            double[] conf = ConfArray(j);
+            double acc=0;
+            for(int k=0; k<m_class_num; ++k)
+            {
+                acc += conf[WorkerOffset(j)+k*m_class_num+k];
+            }
+            System.out.print(acc/m_class_num+",\t");
+        }
+        System.out.println();
+    }
+}
+
+/* The fork-join task of the parallel EM sweep splits its range of task parts in halves.
+ */
+class EM_Sweep_Task extends RecursiveAction {
+    private final static long serialVersionUID = 1L;
+    private final EM_Model m_model;
+    private final int m_first_part, m_last_part;
+    private final boolean m_count;
+
+    EM_Sweep_Task(EM_Model model, int first_part, int last_part, boolean Count_Or_Not)
+    {
+        m_model = model;
+        m_first_part = first_part;
+        m_last_part = last_part;
+        m_count = Count_Or_Not;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if(m_last_part-m_first_part==1)
+        {
+            m_model.SweepPart(m_first_part, m_count);
+        }
+        else
+        {
+            int mid_part = (m_first_part+m_last_part)>>>1;
+            invokeAll(new EM_Sweep_Task(m_model, m_first_part, mid_part, m_count),
+                    new EM_Sweep_Task(m_model, mid_part, m_last_part, m_count));
+        }
+    }
+}
+
+/* The overlay of the EM model shares the parameters of its base model read-only and keeps private
+ * copies of the task posteriors and worker matrices changed by the incremental QuickUpdate.
+ */
+class EM_Overlay extends EM_Model {
+    // Private task posteriors, and private worker matrices {confusion, log-confusion, soft counts}
+    private final Map<Integer, double[]> m_task_prob;
+    private final Map<Integer, double[][]> m_worker;
+    // Tasks edited since this overlay was created
+    private final Set<Integer> m_dirty;
+    // The overlay this one was made from (null when made from the base model), and the base model
+    private EM_Overlay m_source = null;
+    private final Prob_Model m_base_model;
+
+    EM_Overlay(EM_Model base)
+    {
+        super(base, new Label_Index(base.m_index, true));
+        m_task_prob = new HashMap<>();
+        m_worker = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_base_model = base.getBase();
+    }
+
+    EM_Overlay(EM_Overlay overlay)
+    {
+        this((EM_Model) overlay);
+        m_source = overlay;
+        CopyRows();
+    }
+
+    private void CopyRows()
+    {
+        for(Map.Entry<Integer, double[]> e: m_source.m_task_prob.entrySet())
+        {
+            m_task_prob.put(e.getKey(), e.getValue().clone());
+        }
+        for(Map.Entry<Integer, double[][]> e: m_source.m_worker.entrySet())
+        {
+            double[][] mats = e.getValue();
+            m_worker.put(e.getKey(), new double[][]{mats[0].clone(), mats[1].clone(), mats[2].clone()});
+        }
+    }
+
+    public boolean Revert()
+    {
+        m_task_prob.clear();
+        m_worker.clear();
+        m_dirty.clear();
+        m_index.Revert();
+        if(m_source!=null)
+        {
+            CopyRows();
+        }
+        return true;
+    }
+
+    double[] TaskArray(int i)
+    {
+        double[] row = m_task_prob.get(i);
+        return (row==null) ? super.TaskArray(i) : row;
+    }
+
+    int TaskOffset(int i)
+    {
+        return m_task_prob.containsKey(i) ? 0 : super.TaskOffset(i);
+    }
+
+    double[] ConfArray(int j)
+    {
+        double[][] mats = m_worker.get(j);
+        return (mats==null) ? super.ConfArray(j) : mats[0];
+    }
+
+    double[] LogConfArray(int j)
+    {
+        double[][] mats = m_worker.get(j);
+        return (mats==null) ? super.LogConfArray(j) : mats[1];
+    }
+
+    double[] CountArray(int j)
+    {
+        double[][] mats = m_worker.get(j);
+        return (mats==null) ? super.CountArray(j) : mats[2];
+    }
+
+    int WorkerOffset(int j)
+    {
+        return m_worker.containsKey(j) ? 0 : super.WorkerOffset(j);
+    }
+
+    void EditTask(int i)
+    {
+        m_dirty.add(i);
+        if(!m_task_prob.containsKey(i))
+        {
+            int offset = super.TaskOffset(i);
+            m_task_prob.put(i, Arrays.copyOfRange(super.TaskArray(i), offset, offset+m_class_num));
+        }
+    }
+
+    void EditWorker(int j)
+    {
+        if(!m_worker.containsKey(j))
+        {
+            int offset = super.WorkerOffset(j);
+            int size = m_class_num*m_class_num;
+            m_worker.put(j, new double[][]{
+                    Arrays.copyOfRange(super.ConfArray(j), offset, offset+size),
+                    Arrays.copyOfRange(super.LogConfArray(j), offset, offset+size),
+                    Arrays.copyOfRange(super.CountArray(j), offset, offset+size)});
+        }
+    }
+
+    void CopyOverlayTo(EM_Model model)
+    {
+        for(Map.Entry<Integer, double[]> e: m_task_prob.entrySet())
+        {
+            System.arraycopy(e.getValue(), 0, model.TaskArray(e.getKey()), model.TaskOffset(e.getKey()), m_class_num);
+        }
+        for(Map.Entry<Integer, double[][]> e: m_worker.entrySet())
+        {
+            int j = e.getKey();
+            double[][] mats = e.getValue();
+            System.arraycopy(mats[0], 0, model.ConfArray(j), model.WorkerOffset(j), mats[0].length);
+            System.arraycopy(mats[1], 0, model.LogConfArray(j), model.WorkerOffset(j), mats[1].length);
+            System.arraycopy(mats[2], 0, model.CountArray(j), model.WorkerOffset(j), mats[2].length);
+        }
+    }
+
+    // An overlay never sweeps the whole market
+    public void Update(Action a, State newS)
+    {
+        QuickUpdate(a, newS);
+    }
+
+    public void BatchUpdate(List<Action> actions, State newS)
+    {
+        for(Action a: actions)
+        {
+            QuickUpdate(a, newS);
+        }
+    }
+
+    // The overlay of an overlay shares the same base model
+    public Prob_Model Overlay()
+    {
+        return new EM_Overlay(this);
+    }
+
+    public int[] getDirtyTasks()
+    {
+        return m_dirty.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public Prob_Model getBase()
+    {
+        return m_base_model;
+    }
+}
+
+/* Bayesian EM probability model - variational Bayesian EM with Dirichlet priors
+ * The rows of the confusion matrices follow Dir(alpha) (m_prior_diag on the diagonal, m_prior_off elsewhere)
+ * and the class proportions follow Dir(m_prior_class). The mean-field posterior keeps
+ *   q(z_i) in p_label, with s_label[i*K+k] = sum of E[log c_j[k][l_ij]] over the labels of task i,
+ *   q(c_j[k]) = Dir(alpha_k + c_count[j][k]) summarized by e_log_c = E[log c_j[k][l]],
+ *   q(pi) = Dir(m_prior_class + class_count) summarized by e_log_pi = E[log pi_k].
+ */
+class BEM_Model extends Push_Market_Model {
+    // Priors
+    private final static double m_prior_diag = 2.0;
+    private final static double m_prior_off = 1.0;
+    private final static double m_prior_class = 1.0;
+
+    private double[] p_label, s_label;
+    private double[] c_count, e_log_c;
+    private double[] class_count, e_log_pi;
+    // Size of a confusion matrix
+    private final int m_mat_size;
+    // Maximum number of sweeps of Update
+    private int m_max_sweep = 20;
+    // Scratch buffer of one task posterior
+    private final double[] m_buf;
+    // Observed labels
+    final Label_Index m_index;
+
+    BEM_Model(int task_num, int worker_num, int class_num)
+    {
+        super(task_num, worker_num, class_num);
+        m_mat_size = class_num*class_num;
+        p_label = new double[task_num*class_num];
+        s_label = new double[task_num*class_num];
+        c_count = new double[worker_num*m_mat_size];
+        e_log_c = new double[worker_num*m_mat_size];
+        class_count = new double[class_num];
+        e_log_pi = new double[class_num];
+        m_buf = new double[class_num];
+        m_index = new Label_Index(task_num, worker_num);
+        Arrays.fill(p_label, 1.0/class_num);
+        for(int j=0; j<worker_num; ++j)
+        {
+            RefreshWorker(j);
         }
+        RefreshClass();
     }
 
-    public RealVector getLabelProb(Action a)
+    BEM_Model(BEM_Model model)
     {
-        // double sum = Arrays.stream(m_label_count[a.i]).sum();
-        // double[] prob = Arrays.stream(m_label_count[a.i]).map(s->s/sum).toArray();
-        return new ArrayRealVector(m_label_prob[a.i]);
+        super(model);
+        m_mat_size = model.m_mat_size;
+        p_label = model.p_label.clone();
+        s_label = model.s_label.clone();
+        c_count = model.c_count.clone();
+        e_log_c = model.e_log_c.clone();
+        class_count = model.class_count.clone();
+        e_log_pi = model.e_log_pi.clone();
+        m_max_sweep = model.m_max_sweep;
+        m_buf = new double[m_class_num];
+        m_index = new Label_Index(model.m_index);
+        model.CopyOverlayTo(this);
     }
 
-    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Not)
+    // Share the parameters of the base model (used by the overlay)
+    BEM_Model(BEM_Model base, Label_Index index)
     {
-        if(Prob_or_Not)
-        {
-            // double sum = Arrays.stream(m_label_count[task_no]).sum();
-            // double[] prob = Arrays.stream(m_label_count[task_no]).map(s->s/sum).toArray();
-            return new ArrayRealVector(m_label_prob[task_no]);
-        }
-        else
-        {
-            return new ArrayRealVector(m_label_count[task_no]);
-        }
+        super(base);
+        m_mat_size = base.m_mat_size;
+        p_label = base.p_label;
+        s_label = base.s_label;
+        c_count = base.c_count;
+        e_log_c = base.e_log_c;
+        class_count = base.class_count.clone();
+        e_log_pi = base.e_log_pi.clone();
+        m_max_sweep = base.m_max_sweep;
+        m_buf = new double[m_class_num];
+        m_index = index;
     }
 
-    public void Update(Action a, State newS)
+    // Restore the class statistics from the model an overlay was made from
+    void RevertClass(BEM_Model source)
     {
-        int newLabel = (int)newS.getEntry(a.i, a.j);
-        m_label_count[a.i][newLabel-1] += 1;
-        double sum = Arrays.stream(m_label_count[a.i]).sum();
-        for(int j=0;j<m_class_num;++j)
-        {
-            m_label_prob[a.i][j] = m_label_count[a.i][j]/sum;
-        }
+        System.arraycopy(source.class_count, 0, class_count, 0, m_class_num);
+        System.arraycopy(source.e_log_pi, 0, e_log_pi, 0, m_class_num);
     }
 
-    public void QuickUpdate(Action a, State newS)
+    // Set the maximum number of sweeps of Update
+    void Update_SetUp(int max_sweep)
     {
-        Update(a, newS);
+        m_max_sweep = max_sweep;
     }
 
-    public MJ_Model Copy()
+    /* Storage of the posterior (and label score) of task i and of the matrices of worker j: the array
+     * holding them and the offset of their first entry. Edit makes them private before writing.
+     */
+    double[] ProbArray(int i)
     {
-        return new MJ_Model(this);
+        return p_label;
     }
-}
-
-
-/* Bayesian Update probability model -  JMLR 15
- */
-class BU_Model extends Push_Market_Model {
-    // The parameters for this probability model
-    private double[] m_a,m_b,m_c,m_d;
 
-    BU_Model(int task_num, int worker_num, int class_num)
+    double[] ScoreArray(int i)
     {
-        super(task_num, worker_num, class_num);
-        m_a = new double[task_num];
-        m_b = new double[task_num];
-        m_c = new double[worker_num];
-        m_d = new double[worker_num];
-        Arrays.fill(m_a, 1.0);
-        Arrays.fill(m_b, 1.0);
-        Arrays.fill(m_c, 4.0);
-        Arrays.fill(m_d, 1.0);
+        return s_label;
     }
 
-    BU_Model(BU_Model model)
+    int TaskOffset(int i)
     {
-        super(model.getTask_Num(), model.getWorker_Num(), model.getClass_Num());
-        m_a = new double[m_task_num];
-        m_b = new double[m_task_num];
-        m_c = new double[m_worker_num];
-        m_d = new double[m_worker_num];
-        System.arraycopy(model.m_a, 0, m_a, 0, m_task_num);
-        System.arraycopy(model.m_b, 0, m_b, 0, m_task_num);
-        System.arraycopy(model.m_c, 0, m_c, 0, m_worker_num);
-        System.arraycopy(model.m_d, 0, m_d, 0, m_worker_num);
+        return i*m_class_num;
     }
 
-    public BU_Model Copy()
+    double[] CountArray(int j)
     {
-        return  new BU_Model(this);
+        return c_count;
     }
 
-    public RealVector getLabelProb(Action a)
+    double[] LogConfArray(int j)
     {
-        double[] prob = new double[2];
-        double th = m_a[a.i]/(m_a[a.i]+m_b[a.i]);
-        double rou = m_c[a.j]/(m_c[a.j]+m_d[a.j]);
-        prob[0] = th*rou + (1-th)*(1-rou);
-        prob[1] = 1 - prob[0];
-        return new ArrayRealVector(prob);
+        return e_log_c;
     }
 
-    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Para)
+    int WorkerOffset(int j)
     {
-        double[] prob = new double[2];
-        prob[0] = m_a[task_no]/(m_a[task_no]+m_b[task_no]);
-        prob[1] = 1 - prob[0];
-        return new ArrayRealVector(prob);
+        return j*m_mat_size;
     }
 
-    public void Update(Action a, State newS)
+    void EditTask(int i)
     {
-        double va = m_a[a.i];
-        double vb = m_b[a.i];
-        double vc = m_c[a.j];
-        double vd = m_d[a.j];
-        double Eth=0, EEth=0, Erou=0, EErou=0;
-        if(newS.getEntry(a.i, a.j)==1)
-        {
-            Eth = (va*((va+1)*vc+vb*vd))/((va+vb+1)*(va*vc+vb*vd));
-            EEth = (va*(va+1)*((va+2)*vc+vb*vd))/((va+vb+1)*(va+vb+2)*(va*vc+vb*vd));
-            Erou = (vc*(va*(vc+1)+vb*vd))/((vc+vd+1)*(va*vc+vb*vd));
-            EErou = (vc*(vc+1)*(va*(vc+2)+vb*vd))/((vc+vd+1)*(vc+vd+2)*(va*vc+vb*vd));
-        }
-        else if (newS.getEntry(a.i, a.j)==2)
-        {
-            Eth = (va*(vb*vc+(va+1)*vd))/((va+vb+1)*(vb*vc+va*vd));
-            EEth = (va*(va+1)*(vb*vc+(va+2)*vd))/((va+vb+1)*(va+vb+2)*(vb*vc+va*vd));
-            Erou = (vc*(vb*(vc+1)+va*vd))/((vc+vd+1)*(vb*vc+va*vd));
-            EErou = (vc*(vc+1)*(vb*(vc+2)+va*vd))/((vc+vd+1)*(vc+vd+2)*(vb*vc+va*vd));
-        }
-        else
-        {
-            System.out.println("Get Wrong Action!!!");
-            System.exit(1);
-        }
-        double ti_a = Eth*(Eth-EEth)/(EEth-Eth*Eth);
-        double ti_b = (1-Eth)*(Eth-EEth)/(EEth-Eth*Eth);
-        double ti_c = Erou*(Erou-EErou)/(EErou-Erou*Erou);
-        double ti_d = (1-Erou)*(Erou-EErou)/(EErou-Erou*Erou);
-        m_a[a.i] = ti_a;
-        m_b[a.i] = ti_b;
-        m_c[a.j] = ti_c;
-        m_d[a.j] = ti_d;
     }
 
-    public  void QuickUpdate(Action a, State newS)
+    void EditWorker(int j)
     {
-        Update(a, newS);
     }
 
-    public void PrintModel()
+    // Write the private parameters of an overlay into a stand-alone copy
+    void CopyOverlayTo(BEM_Model model)
     {
-        for(int i=0; i<m_worker_num; ++i)
-        {
-            System.out.print(m_c[i]/(m_c[i]+m_d[i])+",\t");
-        }
-        System.out.println();
     }
-}
-
-/* EM probability model
- */
-class EM_Model extends Push_Market_Model {
 
-    private double[][][] c_tensor;
-    private double[][] p_label;
-
-    EM_Model(int task_num, int worker_num, int class_num)
+    private double Prior(int k, int l)
     {
-        super(task_num,worker_num,class_num);
-        c_tensor = new double[worker_num][class_num][class_num];
-        p_label = new double[task_num][class_num];
-        InitModel();
+        return (k==l) ? m_prior_diag : m_prior_off;
     }
 
-    private void InitModel()
+    // Recalculate E[log c_j] from the soft counts of worker j
+    private void RefreshWorker(int j)
     {
-        for(double[][] p:c_tensor)
+        EditWorker(j);
+        double[] count = CountArray(j);
+        double[] e_log = LogConfArray(j);
+        int offset = WorkerOffset(j);
+        for(int k=0; k<m_class_num; ++k)
         {
-            for(int k=0; k<m_class_num; k++)
+            int row = offset+k*m_class_num;
+            double row_sum = 0;
+            for(int l=0; l<m_class_num; ++l)
             {
-                for(int t=0; t<m_class_num; t++)
-                {
-                    if(k==t)
-                    {
-                        p[k][t] = 1.0;
-                    }
-                    else
-                    {
-                        p[k][t] = 0;
-                    }
-                }
+                // Incremental updates may leave rounding residues below zero
+                count[row+l] = Math.max(count[row+l], 0.0);
+                row_sum += Prior(k, l)+count[row+l];
             }
+            double di_sum = Gamma.digamma(row_sum);
+            for(int l=0; l<m_class_num; ++l)
+            {
+                e_log[row+l] = Gamma.digamma(Prior(k, l)+count[row+l])-di_sum;
+            }
+        }
+    }
+
+    // Recalculate E[log pi] from the class counts
+    private void RefreshClass()
+    {
+        double sum = 0;
+        for(int k=0; k<m_class_num; ++k)
+        {
+            class_count[k] = Math.max(class_count[k], 0.0);
+            sum += m_prior_class+class_count[k];
         }
-        for(double[] p:p_label)
+        double di_sum = Gamma.digamma(sum);
+        for(int k=0; k<m_class_num; ++k)
         {
-            Arrays.fill(p, 0.5);
+            e_log_pi[k] = Gamma.digamma(m_prior_class+class_count[k])-di_sum;
         }
     }
 
-    EM_Model(EM_Model model)
+    // Calculate q(z_i) from its label score
+    private void NormalizeTask(int i)
     {
-        super(model);
-        c_tensor = new double[m_worker_num][m_class_num][m_class_num];
-        p_label = new double[m_task_num][m_class_num];
-        for(int i=0; i<m_worker_num; ++i)
+        double[] prob = ProbArray(i);
+        double[] score = ScoreArray(i);
+        int offset = TaskOffset(i);
+        double max_log = -Double.MAX_VALUE;
+        for(int k=0; k<m_class_num; ++k)
         {
-            for(int j=0; j<m_class_num; ++j)
-            {
-                System.arraycopy(model.c_tensor[i][j],0, c_tensor[i][j], 0, m_class_num);
-            }
+            max_log = Math.max(max_log, e_log_pi[k]+score[offset+k]);
         }
-        for(int i=0; i<m_task_num; ++i)
+        double prob_sum = 0;
+        for(int k=0; k<m_class_num; ++k)
+        {
+            prob[offset+k] = Math.exp(e_log_pi[k]+score[offset+k]-max_log);
+            prob_sum += prob[offset+k];
+        }
+        for(int k=0; k<m_class_num; ++k)
         {
-            System.arraycopy(model.p_label[i], 0, p_label[i], 0, m_class_num);
+            prob[offset+k] /= prob_sum;
         }
     }
 
     public RealVector getLabelProb(Action a)
     {
         double[] p = new double[m_class_num];
-        for(int i=0; i<m_class_num; ++i)
+        getLabelProb(a, p);
+        return new ArrayRealVector(p, false);
+    }
+
+    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Para)
+    {
+        int offset = TaskOffset(task_no);
+        return new ArrayRealVector(Arrays.copyOfRange(ProbArray(task_no), offset, offset+m_class_num));
+    }
+
+    public void getLabelProb(Action a, double[] p)
+    {
+        Arrays.fill(p, 0, m_class_num, 0.0);
+        double[] prob = ProbArray(a.i);
+        int task_offset = TaskOffset(a.i);
+        double[] count = CountArray(a.j);
+        int offset = WorkerOffset(a.j);
+        for(int k=0; k<m_class_num; ++k)
         {
-            p[i] = 0;
-            for(int j=0; j<m_class_num; ++j)
+            int row = offset+k*m_class_num;
+            double row_sum = 0;
+            for(int l=0; l<m_class_num; ++l)
+            {
+                row_sum += Prior(k, l)+count[row+l];
+            }
+            for(int l=0; l<m_class_num; ++l)
             {
-                p[i] += p_label[a.i][j]*c_tensor[a.j][j][i];
+                p[l] += prob[task_offset+k]*(Prior(k, l)+count[row+l])/row_sum;
             }
         }
-        return new ArrayRealVector(p);
     }
 
-    public RealVector getTaskLabelProb(int task_no, boolean Prob_or_Para)
+    public void getTaskLabelProb(int task_no, double[] buf)
+    {
+        System.arraycopy(ProbArray(task_no), TaskOffset(task_no), buf, 0, m_class_num);
+    }
+
+    public double getTaskMaxProb(int task_no)
+    {
+        return MaxOf(ProbArray(task_no), TaskOffset(task_no), m_class_num);
+    }
+
+    public int getTaskMaxLabel(int task_no)
+    {
+        return ArgMaxOf(ProbArray(task_no), TaskOffset(task_no), m_class_num);
+    }
+
+    // Update runs at most m_max_sweep mean-field sweeps, warm-started from the current posterior
+    public void Update(Action a, State newS)
     {
-        return new ArrayRealVector(p_label[task_no]);
+        m_index.Add(a.i, a.j, (int)newS.getEntry(a.i, a.j));
+        RunSweeps();
     }
 
-    private void PIteration(State S)
+    // All the labels of the batch enter the index before one run of sweeps
+    public void BatchUpdate(List<Action> actions, State newS)
     {
-        for(double[] p:p_label)
+        for(Action a: actions)
         {
-            Arrays.fill(p,0.0);
+            m_index.Add(a.i, a.j, (int)newS.getEntry(a.i, a.j));
         }
-        for(int i=0; i<m_task_num; ++i)
+        if(!actions.isEmpty())
+        {
+            RunSweeps();
+        }
+    }
+
+    // Run at most m_max_sweep mean-field sweeps on the current labels
+    private void RunSweeps()
+    {
+        for(int sweep=0; sweep<m_max_sweep; ++sweep)
         {
+            // Variational M-step: counts of the labeled tasks
+            Arrays.fill(c_count, 0.0);
+            Arrays.fill(class_count, 0.0);
+            for(int i=0; i<m_task_num; ++i)
+            {
+                if(m_index.getTaskDegree(i)>0)
+                {
+                    AddTaskCounts(i, p_label, i*m_class_num, 1.0);
+                }
+            }
             for(int j=0; j<m_worker_num; ++j)
             {
-                double ob_label = S.getEntry(i,j);
-                if(ob_label>0.5)
+                RefreshWorker(j);
+            }
+            RefreshClass();
+            // Variational E-step
+            double change = 0;
+            for(int i=0; i<m_task_num; ++i)
+            {
+                int offset = i*m_class_num;
+                System.arraycopy(p_label, offset, m_buf, 0, m_class_num);
+                Arrays.fill(s_label, offset, offset+m_class_num, 0.0);
+                for(int n=0; n<m_index.getTaskDegree(i); ++n)
                 {
+                    int row = m_index.getTaskWorker(i, n)*m_mat_size+m_index.getTaskLabel(i, n)-1;
                     for(int k=0; k<m_class_num; ++k)
                     {
-                        p_label[i][k] += Math.log(c_tensor[j][k][(int)ob_label-1]+1e-20);
+                        s_label[offset+k] += e_log_c[row+k*m_class_num];
                     }
                 }
+                NormalizeTask(i);
+                for(int k=0; k<m_class_num; ++k)
+                {
+                    change = Math.max(change, Math.abs(p_label[offset+k]-m_buf[k]));
+                }
             }
-            double prob_sum = 0;
-            for(int k=0; k<m_class_num; ++k)
+            if(change<1e-6)
             {
-                p_label[i][k] = Math.exp(p_label[i][k]);
-                prob_sum += p_label[i][k];
+                break;
             }
-            for(int k=0; k<m_class_num; ++k)
+        }
+        // Keep the counts in step with the posterior for QuickUpdate
+        Arrays.fill(c_count, 0.0);
+        Arrays.fill(class_count, 0.0);
+        for(int i=0; i<m_task_num; ++i)
+        {
+            if(m_index.getTaskDegree(i)>0)
             {
-                p_label[i][k] /= prob_sum;
+                AddTaskCounts(i, p_label, i*m_class_num, 1.0);
             }
         }
+        for(int j=0; j<m_worker_num; ++j)
+        {
+            RefreshWorker(j);
+        }
+        RefreshClass();
     }
 
-    private void MIteration(State S)
+    // Add scale*prob to the soft counts of the labels of task i and to the class counts
+    private void AddTaskCounts(int i, double[] prob, int offset, double scale)
     {
-        for(double[][] p: c_tensor)
+        for(int n=0; n<m_index.getTaskDegree(i); ++n)
         {
-            for(double[] pp:p)
+            int j = m_index.getTaskWorker(i, n);
+            EditWorker(j);
+            double[] count = CountArray(j);
+            int row = WorkerOffset(j)+m_index.getTaskLabel(i, n)-1;
+            for(int k=0; k<m_class_num; ++k)
             {
-                Arrays.fill(pp, 0.0);
+                count[row+k*m_class_num] += scale*prob[offset+k];
             }
         }
-        for(int i=0; i<m_task_num; ++i)
+        for(int k=0; k<m_class_num; ++k)
         {
-            for(int j=0; j<m_worker_num; ++j)
-            {
-                double ob_label = S.getEntry(i,j);
-                if(ob_label>0.5)
-                {
-                    for(int k=0; k<m_class_num; ++k)
-                    {
-                        c_tensor[j][k][(int)ob_label-1] += p_label[i][k];
-                    }
-                }
-            }
+            class_count[k] += scale*prob[offset+k];
         }
-        for(int j=0; j<m_worker_num; ++j)
+    }
+
+    /* QuickUpdate is one coordinate step of the mean-field updates on the factors touched by the label:
+     * q(c_a.j) and q(pi) take the label with the current q(z_a.i), q(z_a.i) is recalculated from its
+     * cached label score plus the new term, and the counts move by the change of q(z_a.i).
+     * The cost is O(classes^2). The other workers of task a.i keep their counts until the next Update.
+     */
+    public void QuickUpdate(Action a, State newS)
+    {
+        int ob_label = (int)newS.getEntry(a.i, a.j);
+        int old_label = m_index.Add(a.i, a.j, ob_label);
+        boolean labeled_before = (old_label>0) || (m_index.getTaskDegree(a.i)>1);
+        EditTask(a.i);
+        double[] prob = ProbArray(a.i);
+        double[] score = ScoreArray(a.i);
+        int task_offset = TaskOffset(a.i);
+        System.arraycopy(prob, task_offset, m_buf, 0, m_class_num);
+        EditWorker(a.j);
+        double[] count = CountArray(a.j);
+        double[] e_log = LogConfArray(a.j);
+        int offset = WorkerOffset(a.j);
+        for(int k=0; k<m_class_num; ++k)
         {
-            for(int k=0; k<m_class_num; ++k)
+            if(old_label>0)
             {
-                double prob_sum = 0;
-                for(int t=0; t<m_class_num; ++t)
-                {
-                    prob_sum += c_tensor[j][k][t];
-                }
-                if(prob_sum!=0)
-                {
-                    for(int t=0; t<m_class_num; ++t)
-                    {
-                        c_tensor[j][k][t] /= prob_sum;
-                    }
-                }
-                else
-                {
-                    for(int t=0; t<m_class_num; ++t)
-                    {
-                        if(t==k)
-                        {
-                            c_tensor[j][k][t] = 1.0;
-                        }
-                        else
-                        {
-                            c_tensor[j][k][t] = 0.0;
-                        }
-                    }
-                }
+                count[offset+k*m_class_num+old_label-1] -= m_buf[k];
+                score[task_offset+k] -= e_log[offset+k*m_class_num+old_label-1];
             }
+            count[offset+k*m_class_num+ob_label-1] += m_buf[k];
+        }
+        RefreshWorker(a.j);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            score[task_offset+k] += e_log[offset+k*m_class_num+ob_label-1];
         }
+        NormalizeTask(a.i);
+        for(int k=0; k<m_class_num; ++k)
+        {
+            count[offset+k*m_class_num+ob_label-1] += prob[task_offset+k]-m_buf[k];
+            class_count[k] += prob[task_offset+k]-(labeled_before ? m_buf[k] : 0.0);
+        }
+        RefreshWorker(a.j);
+        RefreshClass();
     }
 
-    @Contract(pure = true)
-    private double Calc_c_Diff(double[][][] c0)
+    public BEM_Model Copy()
+    {
+        return new BEM_Model(this);
+    }
+
+    public Prob_Model Overlay()
+    {
+        return new BEM_Overlay(this);
+    }
+
+    void PrintModel()
     {
-        double c_diff = 0;
         for(int j=0; j<m_worker_num; ++j)
         {
+            double[] count = CountArray(j);
+            double acc=0;
             for(int k=0; k<m_class_num; ++k)
             {
-                for(int t=0; t<m_class_num; ++t)
+                int row = WorkerOffset(j)+k*m_class_num;
+                double row_sum = 0;
+                for(int l=0; l<m_class_num; ++l)
                 {
-                    c_diff += Math.abs(c_tensor[j][k][t]-c0[j][k][t]);
+                    row_sum += Prior(k, l)+count[row+l];
                 }
+                acc += (Prior(k, k)+count[row+k])/row_sum;
             }
+            System.out.print(acc/m_class_num+",\t");
         }
-        return(c_diff);
+        System.out.println();
+    }
+}
+
+/* The overlay of the Bayesian EM model shares the parameters of its base model read-only and keeps
+ * private copies of the tasks and workers changed by QuickUpdate (and of the small class arrays).
+ */
+class BEM_Overlay extends BEM_Model {
+    // Private task rows {posterior, label score}, and private worker matrices {soft counts, E[log c]}
+    private final Map<Integer, double[][]> m_task;
+    private final Map<Integer, double[][]> m_worker;
+    // Tasks edited since this overlay was created
+    private final Set<Integer> m_dirty;
+    // The model this overlay was made from, and the base model (see getBase)
+    private final BEM_Model m_source;
+    private final Prob_Model m_base_model;
+
+    BEM_Overlay(BEM_Model base)
+    {
+        super(base, new Label_Index(base.m_index, true));
+        m_task = new HashMap<>();
+        m_worker = new HashMap<>();
+        m_dirty = new HashSet<>();
+        m_source = base;
+        m_base_model = base.getBase();
+        CopyRows();
     }
 
-    private void c_clone(double[][][] cN)
+    BEM_Overlay(BEM_Overlay overlay)
     {
-        for(int j=0; j<m_worker_num; ++j)
+        this((BEM_Model) overlay);
+    }
+
+    // The private rows of an overlay source carry over
+    private void CopyRows()
+    {
+        if(!(m_source instanceof BEM_Overlay))
         {
-            for(int k=0; k<m_class_num; ++k)
-            {
-                System.arraycopy(c_tensor[j][k], 0, cN[j][k], 0, m_class_num);
-            }
+            return;
+        }
+        BEM_Overlay overlay = (BEM_Overlay) m_source;
+        for(Map.Entry<Integer, double[][]> e: overlay.m_task.entrySet())
+        {
+            m_task.put(e.getKey(), new double[][]{e.getValue()[0].clone(), e.getValue()[1].clone()});
+        }
+        for(Map.Entry<Integer, double[][]> e: overlay.m_worker.entrySet())
+        {
+            m_worker.put(e.getKey(), new double[][]{e.getValue()[0].clone(), e.getValue()[1].clone()});
         }
     }
 
-    public void Update(Action a, State newS)
+    public boolean Revert()
     {
-        InitModel();
-        double[][][] c0 = new double[m_worker_num][m_class_num][m_class_num];
-        do {
-            c_clone(c0);
-            PIteration(newS);
-            MIteration(newS);
-        }while(Calc_c_Diff(c0)>1e-6);
-        PIteration(newS);
+        m_task.clear();
+        m_worker.clear();
+        m_dirty.clear();
+        m_index.Revert();
+        RevertClass(m_source);
+        CopyRows();
+        return true;
     }
 
-    public  void QuickUpdate(Action a, State newS)
+    double[] ProbArray(int i)
+    {
+        double[][] rows = m_task.get(i);
+        return (rows==null) ? super.ProbArray(i) : rows[0];
+    }
+
+    double[] ScoreArray(int i)
+    {
+        double[][] rows = m_task.get(i);
+        return (rows==null) ? super.ScoreArray(i) : rows[1];
+    }
+
+    int TaskOffset(int i)
+    {
+        return m_task.containsKey(i) ? 0 : super.TaskOffset(i);
+    }
+
+    double[] CountArray(int j)
+    {
+        double[][] mats = m_worker.get(j);
+        return (mats==null) ? super.CountArray(j) : mats[0];
+    }
+
+    double[] LogConfArray(int j)
     {
-        for(int i=0; i<2; ++i)
+        double[][] mats = m_worker.get(j);
+        return (mats==null) ? super.LogConfArray(j) : mats[1];
+    }
+
+    int WorkerOffset(int j)
+    {
+        return m_worker.containsKey(j) ? 0 : super.WorkerOffset(j);
+    }
+
+    void EditTask(int i)
+    {
+        m_dirty.add(i);
+        if(!m_task.containsKey(i))
         {
-            PIteration(newS);
-            MIteration(newS);
+            int offset = super.TaskOffset(i);
+            m_task.put(i, new double[][]{
+                    Arrays.copyOfRange(super.ProbArray(i), offset, offset+m_class_num),
+                    Arrays.copyOfRange(super.ScoreArray(i), offset, offset+m_class_num)});
         }
-        PIteration(newS);
     }
 
-    public EM_Model Copy()
+    void EditWorker(int j)
     {
-        return new EM_Model(this);
+        if(!m_worker.containsKey(j))
+        {
+            int offset = super.WorkerOffset(j);
+            int size = m_class_num*m_class_num;
+            m_worker.put(j, new double[][]{
+                    Arrays.copyOfRange(super.CountArray(j), offset, offset+size),
+                    Arrays.copyOfRange(super.LogConfArray(j), offset, offset+size)});
+        }
     }
 
-    void PrintModel()
+    void CopyOverlayTo(BEM_Model model)
     {
-        for(int j=0; j<m_worker_num; ++j)
+        for(Map.Entry<Integer, double[][]> e: m_task.entrySet())
         {
-            //System.out.print("Worker "+j+": ");
-            double acc=0;
-            for(int k=0; k<m_class_num; ++k)
-            {
-                acc += c_tensor[j][k][k];
-            }
-            System.out.print(acc/m_class_num+",\t");
+            int i = e.getKey();
+            System.arraycopy(e.getValue()[0], 0, model.ProbArray(i), model.TaskOffset(i), m_class_num);
+            System.arraycopy(e.getValue()[1], 0, model.ScoreArray(i), model.TaskOffset(i), m_class_num);
+        }
+        for(Map.Entry<Integer, double[][]> e: m_worker.entrySet())
+        {
+            int j = e.getKey();
+            double[][] mats = e.getValue();
+            System.arraycopy(mats[0], 0, model.CountArray(j), model.WorkerOffset(j), mats[0].length);
+            System.arraycopy(mats[1], 0, model.LogConfArray(j), model.WorkerOffset(j), mats[1].length);
         }
-        System.out.println();
     }
-}
 
-/* Bayesian EM probability model
- */
-class BEM_Model() extends Push_Market_Model {
+    // An overlay never sweeps the whole market
+    public void Update(Action a, State newS)
+    {
+        QuickUpdate(a, newS);
+    }
+
+    public void BatchUpdate(List<Action> actions, State newS)
+    {
+        for(Action a: actions)
+        {
+            QuickUpdate(a, newS);
+        }
+    }
+
+    // The overlay of an overlay shares the same base model
+    public Prob_Model Overlay()
+    {
+        return new BEM_Overlay(this);
+    }
+
+    public int[] getDirtyTasks()
+    {
+        return m_dirty.stream().mapToInt(Integer::intValue).toArray();
+    }
 
-}
\ No newline at end of file
+    public Prob_Model getBase()
+    {
+        return m_base_model;
+    }
+}
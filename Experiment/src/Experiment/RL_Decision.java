@@ -11,29 +11,129 @@ import java.util.concurrent.*;
 abstract class RL_Decision {
     // System time
     int m_t;
-    // Available action list
-    List<Action> m_available_action;
-    // Multi-Thread service
-    ThreadPoolExecutor m_thread_service;
-    // Vector of State (Used for Multi-Threading)
-    DVState m_state_vec;
+    // Available action set
+    Action_Set m_available_action;
+    // Multi-Thread service, and whether this module owns it (then it closes it)
+    ExecutorService m_thread_service;
+    private boolean m_own_service;
+    // The labeling table, read by all evaluation tasks through their own overlays
+    State m_state;
+    // Tasks whose label confidence reaches the threshold are retired (their actions leave the available
+    // action set), and come back if it falls again and reactivation is on; NaN for no retirement
+    private double m_retire_threshold = Double.NaN;
+    private boolean m_reactivate = false;
+    private boolean[] m_retired;
+
+    // The executor backends: the fork-join pool shared by all the modules (sized to the machine), a new virtual
+    // thread per task (Java 21+, the shared pool otherwise), or running the tasks in the calling thread
+    final static int FORK_JOIN = 0;
+    final static int VIRTUAL_THREAD = 1;
+    final static int INLINE = 2;
+    private static ForkJoinPool shared_pool = null;
+    // The missing virtual threads are reported once (on stderr, apart from the results)
+    private static boolean virtual_thread_warned = false;
 
     // Initialize the inner state
     RL_Decision(int t0, State S0)
+    {
+        this(t0, S0, FORK_JOIN);
+    }
+
+    RL_Decision(int t0, State S0, int executor_type)
     {
         m_t = t0;
-        m_available_action = S0.getAvailableAction();
-        int nThreads = 10;//Runtime.getRuntime().availableProcessors()/4+1;
-        m_thread_service = new ThreadPoolExecutor(nThreads, nThreads,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(),
-                new WorkerThreadFactory());
-        m_state_vec = new DVState(S0, nThreads+1);
+        m_available_action = S0.getAvailableActionSet();
+        switch (executor_type)
+        {
+            case VIRTUAL_THREAD:
+                m_thread_service = VirtualThreadExecutor();
+                m_own_service = (m_thread_service!=Shared_Pool());
+                break;
+            case INLINE:
+                m_thread_service = new Inline_Executor();
+                m_own_service = true;
+                break;
+            default:
+                m_thread_service = Shared_Pool();
+                m_own_service = false;
+        }
+        m_state = S0;
+    }
+
+    // The pool of the evaluations, which also grows the trees (see CrowdTree.TreeGrow)
+    static synchronized ForkJoinPool Shared_Pool()
+    {
+        if(shared_pool==null)
+        {
+            shared_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return shared_pool;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection to keep running on Java 8
+    private static synchronized ExecutorService VirtualThreadExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            if(!virtual_thread_warned)
+            {
+                virtual_thread_warned = true;
+                System.err.println("No Virtual Threads, Use The Shared Pool!!!");
+            }
+            return Shared_Pool();
+        }
     }
 
     // Make the task-worker decision
     abstract Action getDecision(State St, Prob_Model model, Obj_Function obj) throws InterruptedException;
 
+    /* Make batch_size task-worker decisions at once. They are made greedily one by one, each decision
+     * hallucinates its most probable label into an overlay of the state and of the model, so the next ones
+     * see it as observed and spread over other tasks. With One_Per_Worker, a worker gets at most one task.
+     */
+    List<Action> getBatchDecision(State St, Prob_Model model, Obj_Function obj, int batch_size,
+                                  boolean One_Per_Worker) throws InterruptedException
+    {
+        List<Action> batch = new ArrayList<>(batch_size);
+        Overlay_State hypo_state = new Overlay_State(St);
+        Prob_Model hypo_model = model.Overlay();
+        double[] label_prob = new double[model.getClass_Num()];
+        // The actions of the busy workers are put aside until the batch is made
+        List<Action> put_aside = new ArrayList<>();
+        while(batch.size()<batch_size && !m_available_action.isEmpty())
+        {
+            Action a = getDecision(hypo_state, hypo_model, obj);
+            batch.add(a);
+            hypo_model.getLabelProb(a, label_prob);
+            int label = Push_Market_Model.ArgMaxOf(label_prob, 0, label_prob.length)+1;
+            hypo_state.setEntry(a.i, a.j, label);
+            hypo_model.QuickUpdate(a, hypo_state);
+            Hallucinate(a);
+            if(One_Per_Worker)
+            {
+                for(int i=0; i<St.getRowDimension(); ++i)
+                {
+                    if(m_available_action.remove(i, a.j))
+                    {
+                        put_aside.add(new Action(i, a.j));
+                    }
+                }
+            }
+        }
+        for(Action a: put_aside)
+        {
+            m_available_action.add(a);
+            Reactivate(a);
+        }
+        return batch;
+    }
+
+    // A hallucinated label of a batch decision (the decision modules with caches drop what it changes)
+    void Hallucinate(Action a)
+    {
+    }
+
     // Get the system time
     int getT()
     {
@@ -43,20 +143,119 @@ abstract class RL_Decision {
     // Update the state
     void UpdateSate(Action a, double label)
     {
-        m_state_vec.setEntry(a.i, a.j, label);
+        m_state.setEntry(a.i, a.j, label);
     }
 
-    // Close the multi-threading service
+    void Retirement_SetUp(double threshold, boolean Reactivate_Or_Not)
+    {
+        m_retire_threshold = threshold;
+        m_reactivate = Reactivate_Or_Not;
+        m_retired = new boolean[m_state.getRowDimension()];
+    }
+
+    // Retire (or bring back) the tasks after the model ingested the labels of the actions. Only the labeled
+    // tasks can change their confidence unless the model is global.
+    void Retirement_Update(Prob_Model model, List<Action> actions)
+    {
+        if(Double.isNaN(m_retire_threshold))
+        {
+            return;
+        }
+        if(model.getActionScope()==Prob_Model.GLOBAL_SCOPE)
+        {
+            for(int i=0; i<m_retired.length; ++i)
+            {
+                Retirement_Check(model, i);
+            }
+        }
+        else
+        {
+            for(Action a: actions)
+            {
+                Retirement_Check(model, a.i);
+            }
+        }
+    }
+
+    private void Retirement_Check(Prob_Model model, int task_no)
+    {
+        boolean confident = model.getTaskMaxProb(task_no)>=m_retire_threshold;
+        if(confident && !m_retired[task_no])
+        {
+            m_retired[task_no] = true;
+            for(int j=0; j<m_state.getColumnDimension(); ++j)
+            {
+                m_available_action.remove(task_no, j);
+            }
+        }
+        else if(!confident && m_retired[task_no] && m_reactivate)
+        {
+            // The unlabeled cells of the task are its actions
+            m_retired[task_no] = false;
+            for(int j=0; j<m_state.getColumnDimension(); ++j)
+            {
+                if(m_state.getEntry(task_no, j)==0 && m_available_action.add(task_no, j))
+                {
+                    Reactivate(new Action(task_no, j));
+                }
+            }
+        }
+    }
+
+    // An action is available again (the decision modules with caches must consider it)
+    void Reactivate(Action a)
+    {
+    }
+
+    // Whether any action is left to decide on
+    boolean hasAvailableAction()
+    {
+        return !m_available_action.isEmpty();
+    }
+
+    // Close the multi-threading service (the shared pool stays for the other modules)
     void closeThreadPool() {
-        m_thread_service.shutdown();
+        if(m_own_service)
+        {
+            m_thread_service.shutdown();
+        }
     }
 }
 
-class WorkerThreadFactory implements ThreadFactory {
-    private int counter = 0;
+/* The inline executor runs every task in the calling thread, which saves the thread hand-off on small markets.
+ */
+class Inline_Executor extends AbstractExecutorService {
+    private volatile boolean m_shutdown = false;
 
-    public Thread newThread(Runnable r) {
-        return new Thread(r, Integer.toString(counter++));
+    public void execute(Runnable command)
+    {
+        command.run();
+    }
+
+    public void shutdown()
+    {
+        m_shutdown = true;
+    }
+
+    public List<Runnable> shutdownNow()
+    {
+        m_shutdown = true;
+        return new ArrayList<>();
+    }
+
+    public boolean isShutdown()
+    {
+        return m_shutdown;
+    }
+
+    public boolean isTerminated()
+    {
+        return m_shutdown;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    {
+        return m_shutdown;
     }
 }
 
@@ -71,12 +270,17 @@ class Random_RL extends RL_Decision {
         super(t0, S0);
     }
 
+    Random_RL(int t0, State S0, int executor_type)
+    {
+        super(t0, S0, executor_type);
+    }
+
     Action getDecision(State St, Prob_Model model, Obj_Function obj)
     {
         // Uniformly select the action
         int index_of_action = ThreadLocalRandom.current().nextInt(m_available_action.size());
         // Remove the action from the action set
-        Action at = m_available_action.remove(index_of_action);
+        Action at = m_available_action.removeAt(index_of_action);
         // The time plus one
         m_t++;
 
@@ -87,43 +291,384 @@ class Random_RL extends RL_Decision {
 /* The optimistic knowledge gradient method
  */
 class OptGrad_RL extends RL_Decision {
+    // Cached action gains, only the actions that the last labels may change are scored again
+    private final Lazy_Greedy m_lazy;
+
     OptGrad_RL(int t0, State S0)
     {
-        super(t0, S0);
+        this(t0, S0, FORK_JOIN);
+    }
+
+    OptGrad_RL(int t0, State S0, int executor_type)
+    {
+        super(t0, S0, executor_type);
+        m_lazy = new Lazy_Greedy(S0.getRowDimension(), S0.getColumnDimension());
     }
 
     Action getDecision(State St, Prob_Model model, Obj_Function obj) throws InterruptedException {
-        // Build the root node
-        CrowdNode root = new CrowdNode(null, null, 0, obj, true, 1.0);
-        // Give the model
-        root.crowdModel = model;
-        root.objValue = 0;
-        // Build the single level tree to identify the best
-        root.Gene_Children(1, m_state_vec, m_available_action, m_thread_service);
-        // Find the best parent action
-        List<CrowdNode> nodes = root.childNodes.get(0);
-        Action at = nodes.get(0).parentAction;
+        // Find the action of the largest optimistic gain
+        Action at = m_lazy.Best_Action(St, model, obj, m_available_action, m_thread_service);
+        if(at==null)
+        {
+            return null;
+        }
         // The time plus one
         m_t++;
 
         // Remove the action
-        int index = m_available_action.indexOf(at);
-        m_available_action.remove(index);
+        m_available_action.remove(at);
 
         return at;
     }
+
+    void UpdateSate(Action a, double label)
+    {
+        super.UpdateSate(a, label);
+        m_lazy.Invalidate(a);
+    }
+
+    void Hallucinate(Action a)
+    {
+        m_lazy.Invalidate(a);
+    }
+
+    void Reactivate(Action a)
+    {
+        m_lazy.Requeue(a);
+    }
+}
+
+/* Lazy Greedy (CELF) caches the optimistic gain (value minus the objective of the model) of every available
+ * action. A label stamps its task and worker, a cached gain is fresh when it was scored after the stamps
+ * that its model scope (see Prob_Model.getActionScope) depends on.
+ * For task (and worker) scoped models only the actions of the labeled tasks (and workers) are scored again,
+ * all others keep their exact gains. For global models every gain goes stale after a label and is used as
+ * an upper bound: the top of the queue is scored again until a freshly scored gain stays on top.
+ * The overlays of the model (see Prob_Model.getBase) share its cache: their labels, like the hallucinated
+ * labels of a batch, are stamped through Invalidate as well.
+ */
+class Lazy_Greedy {
+    private final int m_worker_num;
+    // Clock of the labels, and the last label stamps of the tasks, the workers and the model
+    private int m_clock;
+    private final int[] m_task_stamp;
+    private final int[] m_worker_stamp;
+    private int m_global_stamp;
+    // Stamp of the last scoring of every action (task*worker_num+worker), older queue entries are superseded
+    private final int[] m_eval_stamp;
+    // Labels since the last decision
+    private final List<Action> m_pending;
+    private final Gain_Heap m_heap;
+    // The base model the gains were scored with, a new one scores everything again
+    private Prob_Model m_model;
+
+    Lazy_Greedy(int task_num, int worker_num)
+    {
+        m_worker_num = worker_num;
+        m_clock = 0;
+        m_task_stamp = new int[task_num];
+        m_worker_stamp = new int[worker_num];
+        m_global_stamp = 0;
+        m_eval_stamp = new int[task_num*worker_num];
+        m_pending = new ArrayList<>();
+        m_heap = new Gain_Heap();
+        m_model = null;
+    }
+
+    // Stamp the task and the worker of a new label
+    void Invalidate(Action a)
+    {
+        m_clock++;
+        m_task_stamp[a.i] = m_clock;
+        m_worker_stamp[a.j] = m_clock;
+        m_global_stamp = m_clock;
+        m_pending.add(a);
+    }
+
+    // Queue an action that came back without a gain, as a stale bound above all the others
+    void Requeue(Action a)
+    {
+        m_eval_stamp[a.i*m_worker_num+a.j] = -1;
+        m_heap.Push(Action_Set.Encode(a.i, a.j), Double.MAX_VALUE, -1);
+    }
+
+    // The last stamp the gain of the action depends on
+    private int Stamp(int i, int j, int scope)
+    {
+        switch (scope)
+        {
+            case Prob_Model.TASK_SCOPE:
+                return m_task_stamp[i];
+            case Prob_Model.TASK_WORKER_SCOPE:
+                return Math.max(m_task_stamp[i], m_worker_stamp[j]);
+            default:
+                return m_global_stamp;
+        }
+    }
+
+    // The queue entry is the last scoring of an available action
+    boolean Valid(long code, int stamp, Action_Set available_action)
+    {
+        int i = Action_Set.Task(code);
+        int j = Action_Set.Worker(code);
+        return (stamp==m_eval_stamp[i*m_worker_num+j]) && available_action.contains(i, j);
+    }
+
+    Action Best_Action(State state, Prob_Model model, Obj_Function obj, Action_Set available_action,
+                       ExecutorService executor)
+    {
+        int scope = model.getActionScope();
+        double model_value = obj.getObjValue(model);
+        if(model.getBase()!=m_model)
+        {
+            // Score all the available actions
+            m_model = model.getBase();
+            m_heap.Clear();
+            List<Action> actions = new ArrayList<>(available_action.size());
+            for(int n=0; n<available_action.size(); ++n)
+            {
+                actions.add(available_action.get(n));
+            }
+            Evaluate(actions, state, model, model_value, obj, executor);
+        }
+        else if(scope!=Prob_Model.GLOBAL_SCOPE)
+        {
+            // Score the actions of the labeled tasks (and workers) again
+            List<Action> actions = new ArrayList<>();
+            for(Action a: m_pending)
+            {
+                for(int j=0; j<m_worker_num; ++j)
+                {
+                    if(available_action.contains(a.i, j) && m_eval_stamp[a.i*m_worker_num+j]<m_clock)
+                    {
+                        // Stamped now so that it is queued once
+                        actions.add(new Action(a.i, j));
+                        m_eval_stamp[a.i*m_worker_num+j] = m_clock;
+                    }
+                }
+                if(scope==Prob_Model.TASK_WORKER_SCOPE)
+                {
+                    for(int i=0; i<m_task_stamp.length; ++i)
+                    {
+                        if(available_action.contains(i, a.j) && m_eval_stamp[i*m_worker_num+a.j]<m_clock)
+                        {
+                            actions.add(new Action(i, a.j));
+                            m_eval_stamp[i*m_worker_num+a.j] = m_clock;
+                        }
+                    }
+                }
+            }
+            Evaluate(actions, state, model, model_value, obj, executor);
+        }
+        m_pending.clear();
+        // Drop the superseded entries once they outnumber the available actions
+        if(m_heap.size()>2*available_action.size()+64)
+        {
+            m_heap.Retain(this, available_action);
+        }
+        // The stale bounds are scored again in one workspace, with one action instance
+        PredictValueTask workspace = null;
+        Action a = new Action(0, 0);
+        while(m_heap.size()>0)
+        {
+            long code = m_heap.PeekCode();
+            int stamp = m_heap.PeekStamp();
+            m_heap.Pop();
+            if(!Valid(code, stamp, available_action))
+            {
+                continue;
+            }
+            a.i = Action_Set.Task(code);
+            a.j = Action_Set.Worker(code);
+            if(stamp>=Stamp(a.i, a.j, scope))
+            {
+                return a;
+            }
+            // A stale bound on top, score it again
+            if(workspace==null)
+            {
+                workspace = new PredictValueTask(state, null, model, model_value, obj, true);
+            }
+            double gain = workspace.Value(a)-model_value;
+            m_eval_stamp[a.i*m_worker_num+a.j] = m_clock;
+            m_heap.Push(code, gain, m_clock);
+        }
+        // No available action is left
+        return null;
+    }
+
+    // Score the actions in parallel (once per signature group, see Action_Groups) and queue their gains
+    private void Evaluate(List<Action> actions, State state, Prob_Model model, double model_value, Obj_Function obj,
+                          ExecutorService executor)
+    {
+        long[] codes = new long[actions.size()];
+        for(int n=0; n<codes.length; ++n)
+        {
+            Action a = actions.get(n);
+            codes[n] = Action_Set.Encode(a.i, a.j);
+            m_eval_stamp[a.i*m_worker_num+a.j] = m_clock;
+        }
+        Action_Groups groups = new Action_Groups(model, codes);
+        double[] values = new double[groups.size()];
+        Range_Task.Evaluate(executor, groups.getRepresentatives(), values, state, model, model_value, obj, true);
+        for(int g=0; g<groups.size(); ++g)
+        {
+            for(int n=groups.First(g); n>=0; n=groups.Next(n))
+            {
+                m_heap.Push(codes[n], values[g]-model_value, m_clock);
+            }
+        }
+    }
+}
+
+/* Gain Heap is a max-heap of primitive (gain, action code, stamp) entries, with lazy deletion by its user.
+ */
+class Gain_Heap {
+    private double[] m_gain;
+    private long[] m_code;
+    private int[] m_stamp;
+    private int m_size;
+
+    Gain_Heap()
+    {
+        m_gain = new double[64];
+        m_code = new long[64];
+        m_stamp = new int[64];
+        m_size = 0;
+    }
+
+    int size()
+    {
+        return m_size;
+    }
+
+    void Clear()
+    {
+        m_size = 0;
+    }
+
+    long PeekCode()
+    {
+        return m_code[0];
+    }
+
+    int PeekStamp()
+    {
+        return m_stamp[0];
+    }
+
+    void Push(long code, double gain, int stamp)
+    {
+        if(m_size==m_gain.length)
+        {
+            m_gain = Arrays.copyOf(m_gain, 2*m_size);
+            m_code = Arrays.copyOf(m_code, 2*m_size);
+            m_stamp = Arrays.copyOf(m_stamp, 2*m_size);
+        }
+        int n = m_size++;
+        while(n>0)
+        {
+            int parent = (n-1)/2;
+            if(m_gain[parent]>=gain)
+            {
+                break;
+            }
+            Move(parent, n);
+            n = parent;
+        }
+        m_gain[n] = gain;
+        m_code[n] = code;
+        m_stamp[n] = stamp;
+    }
+
+    void Pop()
+    {
+        m_size--;
+        if(m_size>0)
+        {
+            SiftDown(0, m_gain[m_size], m_code[m_size], m_stamp[m_size]);
+        }
+    }
+
+    // Keep only the entries the lazy greedy still needs, and heapify them again
+    void Retain(Lazy_Greedy lazy, Action_Set available_action)
+    {
+        int size = 0;
+        for(int n=0; n<m_size; ++n)
+        {
+            if(lazy.Valid(m_code[n], m_stamp[n], available_action))
+            {
+                Move(n, size++);
+            }
+        }
+        m_size = size;
+        for(int n=m_size/2-1; n>=0; --n)
+        {
+            SiftDown(n, m_gain[n], m_code[n], m_stamp[n]);
+        }
+    }
+
+    private void SiftDown(int n, double gain, long code, int stamp)
+    {
+        while(true)
+        {
+            int child = 2*n+1;
+            if(child>=m_size)
+            {
+                break;
+            }
+            if(child+1<m_size && m_gain[child+1]>m_gain[child])
+            {
+                child++;
+            }
+            if(m_gain[child]<=gain)
+            {
+                break;
+            }
+            Move(child, n);
+            n = child;
+        }
+        m_gain[n] = gain;
+        m_code[n] = code;
+        m_stamp[n] = stamp;
+    }
+
+    private void Move(int from, int to)
+    {
+        m_gain[to] = m_gain[from];
+        m_code[to] = m_code[from];
+        m_stamp[to] = m_stamp[from];
+    }
 }
 
 /* The epsilon greedy method
  */
 class EpsGrad_RL extends RL_Decision {
     private double epsilon = 0;
+    // The capacity of the transposition table of the tree (number of nodes), and the depth of the tree
+    private int m_table_size = Transposition_Table.DEFAULT_CAPACITY;
+    private int m_depth = CrowdTree.DEFAULT_DEPTH;
 
     EpsGrad_RL(int t0, State S0)
     {
         super(t0, S0);
     }
 
+    EpsGrad_RL(int t0, State S0, int executor_type)
+    {
+        super(t0, S0, executor_type);
+    }
+
+    void Table_SetUp(int table_size)
+    {
+        m_table_size = table_size;
+    }
+
+    void Depth_SetUp(int depth)
+    {
+        m_depth = depth;
+    }
+
     Action getDecision(State St, Prob_Model model, Obj_Function obj) throws InterruptedException {
         double exploitation_or_exploration = ThreadLocalRandom.current().nextDouble();
         epsilon = Math.exp(-0.005*m_t);
@@ -134,15 +679,14 @@ class EpsGrad_RL extends RL_Decision {
         {
             // exploration by uniformly selecting the action
             index_of_action = ThreadLocalRandom.current().nextInt(m_available_action.size());
-            at = m_available_action.remove(index_of_action);
+            at = m_available_action.removeAt(index_of_action);
         }
         else
         {
             // exploit the current estimate by selecting the best action
-            CrowdTree tree = new CrowdTree(m_state_vec, model, obj, m_available_action, m_thread_service, true);
+            CrowdTree tree = new CrowdTree(St, model, obj, m_available_action, m_thread_service, true, m_table_size, m_depth);
             at = tree.root.Find_Best_Action();
-            index_of_action = m_available_action.indexOf(at);
-            m_available_action.remove(index_of_action);
+            m_available_action.remove(at);
         }
         // The time plus one
         m_t++;
@@ -151,6 +695,248 @@ class EpsGrad_RL extends RL_Decision {
     }
 }
 
+/* The Monte-Carlo tree search (UCT) plans over the best candidate actions of the root. Every simulation
+ * walks down the CrowdNode tree (the action by UCT, the label sampled from the model), expands one new
+ * action, finishes with a random rollout to the planning depth, and backs the final objective up the path.
+ * The search stops at the rollout or the time budget, and the most visited action so far is the decision.
+ */
+class MCTS_RL extends RL_Decision {
+    // Budget of a decision: the number of simulations and the wall-clock time (in milliseconds)
+    private int m_rollout_budget = 500;
+    private long m_time_budget = 200;
+    // The planning depth and the number of candidate actions
+    private int m_depth = 3;
+    private int m_width = 10;
+    // The capacity of the transposition table of the search (number of nodes), 0 for no table
+    private int m_table_size = Transposition_Table.DEFAULT_CAPACITY;
+    // The exploration constant of UCT (on objectives scaled to [0,1])
+    private final static double c_explore = Math.sqrt(2);
+    // The reward range of the current search
+    private double m_min_reward, m_max_reward;
+
+    MCTS_RL(int t0, State S0)
+    {
+        super(t0, S0);
+    }
+
+    MCTS_RL(int t0, State S0, int executor_type)
+    {
+        super(t0, S0, executor_type);
+    }
+
+    void MCTS_SetUp(int rollout_budget, long time_budget, int depth, int width)
+    {
+        MCTS_SetUp(rollout_budget, time_budget, depth, width, m_table_size);
+    }
+
+    void MCTS_SetUp(int rollout_budget, long time_budget, int depth, int width, int table_size)
+    {
+        m_rollout_budget = rollout_budget;
+        m_time_budget = time_budget;
+        m_depth = depth;
+        m_width = width;
+        m_table_size = table_size;
+    }
+
+    Action getDecision(State St, Prob_Model model, Obj_Function obj) throws InterruptedException {
+        long deadline = System.currentTimeMillis()+m_time_budget;
+        // The root expands the candidate actions, best (by one-step value) first
+        CrowdNode root = new CrowdNode(null, null, 0, obj, false, 1.0, true);
+        root.transTable = Transposition_Table.For(model, m_table_size);
+        root.crowdModel = model;
+        root.objValue = obj.getObjValue(model);
+        root.Gene_Children(m_width, St, new Action_View(m_available_action), m_thread_service);
+        List<Action> candidates = new ArrayList<>(root.childNodes.size());
+        for(List<CrowdNode> action_node: root.childNodes)
+        {
+            candidates.add(action_node.get(0).parentAction);
+        }
+        m_min_reward = Double.MAX_VALUE;
+        m_max_reward = -Double.MAX_VALUE;
+        Overlay_State hypo_state = new Overlay_State(St);
+        for(int n=0; n<m_rollout_budget && System.currentTimeMillis()<deadline; ++n)
+        {
+            Simulate(root, candidates, hypo_state);
+            hypo_state.Reset();
+        }
+        // The most visited action, the best one-step action when nothing was simulated
+        Action at = candidates.get(0);
+        int max_visit = 0;
+        for(List<CrowdNode> action_node: root.childNodes)
+        {
+            int visit = 0;
+            for(CrowdNode node: action_node)
+            {
+                visit += node.visitNum;
+            }
+            if(visit>max_visit)
+            {
+                max_visit = visit;
+                at = action_node.get(0).parentAction;
+            }
+        }
+        // The time plus one
+        m_t++;
+
+        // Remove the action
+        m_available_action.remove(at);
+
+        return at;
+    }
+
+    // One simulation from the root, the hypothetical labels of the path go into hypo_state
+    private void Simulate(CrowdNode root, List<Action> candidates, Overlay_State hypo_state)
+    {
+        List<CrowdNode> path = new ArrayList<>();
+        CrowdNode node = root;
+        double reward;
+        while(true)
+        {
+            if(path.size()==m_depth)
+            {
+                reward = node.getModelValue();
+                break;
+            }
+            Action untried = null;
+            if(node!=root)
+            {
+                for(Action a: candidates)
+                {
+                    if(hypo_state.getEntry(a.i, a.j)==0 && !Expanded(node, a))
+                    {
+                        untried = a;
+                        break;
+                    }
+                }
+            }
+            if(untried!=null)
+            {
+                // Expansion, then a rollout from the sampled label
+                List<CrowdNode> action_node = node.Gene_Node(hypo_state, untried);
+                node.childNodes.add(action_node);
+                node = Sample_Label(action_node);
+                hypo_state.setEntry(untried.i, untried.j, node.observedLabel);
+                path.add(node);
+                reward = Rollout(node, candidates, hypo_state, m_depth-path.size());
+                break;
+            }
+            if(node.childNodes.isEmpty())
+            {
+                reward = node.getModelValue();
+                break;
+            }
+            // Selection
+            List<CrowdNode> action_node = Select(node);
+            node = Sample_Label(action_node);
+            hypo_state.setEntry(node.parentAction.i, node.parentAction.j, node.observedLabel);
+            path.add(node);
+        }
+        m_min_reward = Math.min(m_min_reward, reward);
+        m_max_reward = Math.max(m_max_reward, reward);
+        root.visitNum++;
+        for(CrowdNode n: path)
+        {
+            n.visitNum++;
+            n.valueSum += reward;
+        }
+    }
+
+    private static boolean Expanded(CrowdNode node, Action a)
+    {
+        for(List<CrowdNode> action_node: node.childNodes)
+        {
+            if(action_node.get(0).parentAction.equals(a))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The action of the largest upper confidence bound, the unvisited ones first
+    private List<CrowdNode> Select(CrowdNode node)
+    {
+        double range = Math.max(m_max_reward-m_min_reward, 1e-12);
+        double log_visit = Math.log(Math.max(node.visitNum, 1));
+        List<CrowdNode> best = null;
+        double best_bound = -Double.MAX_VALUE;
+        for(List<CrowdNode> action_node: node.childNodes)
+        {
+            int visit = 0;
+            double value = 0;
+            for(CrowdNode n: action_node)
+            {
+                visit += n.visitNum;
+                value += n.valueSum;
+            }
+            if(visit==0)
+            {
+                return action_node;
+            }
+            double bound = (value/visit-m_min_reward)/range+c_explore*Math.sqrt(log_visit/visit);
+            if(bound>best_bound)
+            {
+                best_bound = bound;
+                best = action_node;
+            }
+        }
+        return best;
+    }
+
+    // Sample the observed label by the label probability of the action
+    private static CrowdNode Sample_Label(List<CrowdNode> action_node)
+    {
+        double u = ThreadLocalRandom.current().nextDouble();
+        for(CrowdNode node: action_node)
+        {
+            u -= node.labelProb;
+            if(u<0)
+            {
+                return node;
+            }
+        }
+        return action_node.get(action_node.size()-1);
+    }
+
+    // Random candidate actions with sampled labels for the remaining depth, the reward is the final objective
+    private double Rollout(CrowdNode node, List<Action> candidates, Overlay_State hypo_state, int depth)
+    {
+        Prob_Model model = node.crowdModel;
+        double value = node.getModelValue();
+        double[] label_prob = new double[model.getClass_Num()];
+        List<Action> free = new ArrayList<>();
+        for(Action a: candidates)
+        {
+            if(hypo_state.getEntry(a.i, a.j)==0)
+            {
+                free.add(a);
+            }
+        }
+        for(int d=0; d<depth && !free.isEmpty(); ++d)
+        {
+            Action a = free.remove(ThreadLocalRandom.current().nextInt(free.size()));
+            model.getLabelProb(a, label_prob);
+            double u = ThreadLocalRandom.current().nextDouble();
+            int label = label_prob.length;
+            for(int k=0; k<label_prob.length; ++k)
+            {
+                u -= label_prob[k];
+                if(u<0)
+                {
+                    label = k+1;
+                    break;
+                }
+            }
+            hypo_state.setEntry(a.i, a.j, label);
+            Prob_Model new_model = model.Overlay();
+            new_model.QuickUpdate(a, hypo_state);
+            value = node.objFun.getObjValue(new_model, model, value);
+            model = new_model;
+        }
+        return value;
+    }
+}
+
 
 
 